@@ -1,12 +1,7 @@
 package sim.cda;
 
 import ab3d.util.Log;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.BitSet;
 
 /**
  *
@@ -27,10 +22,32 @@ public class AA extends CDAGameAgent implements Runnable {
     public static final double DELTA = 1;
     public static final double RHO = 0.9;
     public static final int WINDOW_SIZE = 8;
+    // p* weights for averaging over the last n transactions, most recent first
+    private static final double[][] WEIGHTS = new double[WINDOW_SIZE + 1][];
     private double r, beta1, beta2, theta;
     private Double tau = null;
-    private int bidsIndex = 0, currentRepetition = -1;
-    private Map<Integer, Set<CDAGameBid>> alreadyHandled = new HashMap<Integer, Set<CDAGameBid>>();
+    private BidLog.Cursor bids = null;
+    private AggressivenessModel model = null;
+    private int currentRepetition = -1;
+    // Transacted bids already handled as the counterpart of another
+    private final BitSet alreadyHandled = new BitSet();
+
+    static {
+        for (int count = 1; count <= WINDOW_SIZE; count++) {
+            // Calculate the primary weight value which satisfies the given constraints
+            double denom = 0;
+            for (int i = 0; i < count; i++) {
+                denom += Math.pow(RHO, i);
+            }
+            double weight = 1d / denom;
+            // Now set the p* weights
+            WEIGHTS[count] = new double[count];
+            WEIGHTS[count][0] = weight;
+            for (int i = 1; i < count; i++) {
+                WEIGHTS[count][i] = Math.pow(RHO, i) * weight;
+            }
+        }
+    }
 
     public AA(String host, int port, String agentID, String agentPW) {
         super(host, port, agentID, agentPW);
@@ -47,10 +64,28 @@ public class AA extends CDAGameAgent implements Runnable {
         initAA();
     }
 
+    @Override
+    public void setContext(MarketContext context) {
+        super.setContext(context);
+        bids = context.bidLog.cursor(0);
+        model = AggressivenessModel.get(context.params);
+    }
+
     private void initAA() {
         logID = LOG_ID;
-        beta1 = 0.4 * Utils.RANDOM.nextDouble() + 0.2;
-        beta2 = 0.4 * Utils.RANDOM.nextDouble() + 0.2;
+        initRandom();
+    }
+
+    @Override
+    protected void initRandom() {
+        beta1 = 0.4 * random.nextDouble() + 0.2;
+        beta2 = 0.4 * random.nextDouble() + 0.2;
+    }
+
+    @Override
+    protected int getMarketAccess() {
+        // It reads the bid log and the trades
+        return MARKET_READ;
     }
 
     @Override
@@ -58,241 +93,172 @@ public class AA extends CDAGameAgent implements Runnable {
         // New repetition?
         if (currentRepetition != repetitionIndex) {
             // Initialize r randomly from U[-0.2, 0.2]
-            r = 0.4 * Utils.RANDOM.nextDouble() - 0.2;
+            r = 0.4 * random.nextDouble() - 0.2;
             theta = THETA_INIT;
             tau = null;
-            bidsIndex = 0;
-            alreadyHandled.put(repetitionIndex, new HashSet<CDAGameBid>());
+            bids.reset(repetitionIndex);
             currentRepetition = repetitionIndex;
         }
         // Adjust r and tau if there has been at least one transaction
-        if (auctions[repetitionIndex].currentValue() != null && Utils.TRANSACTED_BIDS.containsKey(repetitionIndex) && !Utils.TRANSACTED_BIDS.get(repetitionIndex).isEmpty()) {
-            // Update the risk from all of the bids since last checking
-            if (Utils.BIDS.containsKey(repetitionIndex)) {
-                // Update the risk factor based on the events in the market
-                for (; bidsIndex < Utils.BIDS.get(repetitionIndex).size(); bidsIndex++) {
-                    try {
-                        CDAGameBid bid = Utils.BIDS.get(repetitionIndex).get(bidsIndex);
+        BidLog bidLog = context.bidLog;
+        TradeHistory trades = context.trades;
+        if (auctions[repetitionIndex].currentValue() != null && bidLog.transactedCount(repetitionIndex) > 0) {
+            // Update the risk factor based on the events in the market
+            while (bids.hasNext()) {
+                try {
+                    int bid = bids.next();
 
-                        // Make sure this is not a transaction that was already handled
-                        if (alreadyHandled.get(repetitionIndex).contains(bid)) {
-                            continue;
-                        }
+                    // Make sure this is not a transaction that was already handled
+                    if (alreadyHandled.get(bid)) {
+                        continue;
+                    }
 
-                        // What is the average for the last WINDOW_SIZE (at most) previous transactions?
-                        // Make a list of all transactions that occurred before this bid
-                        List<CDAGameBid> prevTransactions = new ArrayList<CDAGameBid>();
-                        for (int i = 0; i < Utils.TRANSACTED_BIDS.get(repetitionIndex).size(); i++) {
-                            CDAGameBid toCopy = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(i);
-                            // This transaction occurred after the current bid
-                            if (toCopy.timestamp.longValue() > bid.timestamp.longValue()) {
-                                break;
-                            }
-                            // Add to the list
-                            prevTransactions.add(toCopy);
-                        }
-                        // The last one should be a bid in order to make it a full transaction
-                        if (!prevTransactions.isEmpty() && !prevTransactions.get(prevTransactions.size() - 1).agentIsBuyer) {
-                            prevTransactions.remove(prevTransactions.size() - 1);
-                        }
-                        // Can't update tau without a transaction
-                        if (prevTransactions.isEmpty()) {
-                            continue;
-                        }
+                    // What is the average for the last WINDOW_SIZE (at most) previous transactions?
+                    // Count the transactions completed before this bid
+                    int prevTransactions = trades.countBefore(repetitionIndex, bidLog.timestamp(bid));
+                    // Can't update tau without a transaction
+                    if (prevTransactions == 0) {
+                        continue;
+                    }
 
-                        // Calculate p*
-                        double sum = 0, count = 0;
-                        // How many transactions will be used in the average?
-                        if (prevTransactions.size() >= WINDOW_SIZE * 2) {
-                            count = WINDOW_SIZE;
-                        } else {
-                            count = prevTransactions.size() / 2;
-                        }
-                        
-                        // Calculate the primary weight value which satisfies the given constraints
-                        double[] weights = new double[(int) count];
-                        double denom = 0;
-                        for (int i = 0; i < count; i++) {
-                            denom += Math.pow(RHO, i);
-                        }
-                        double weight = 1d / denom;
-                        // Now set the p* weights
-                        weights[0] = weight;
-                        for (int i = 1; i < count; i++) {
-                            weights[i] = Math.pow(RHO, i) * weight;
-                        }
-                        
-                        // Add up the weighted price for all of the transactions
-                        for (int i = prevTransactions.size() - 1, num = 0; i >= 0 && num < count; i -= 2, num++) {
-                            // Get the two bids
-                            CDAGameBid bid1 = prevTransactions.get(i);
-                            CDAGameBid bid2 = prevTransactions.get(i - 1);
-                            // Get the transaction price (earliest of the two)
-                            double q;
-                            if (bid1.timestamp.longValue() <= bid2.timestamp.longValue()) {
-                                q = bid1.price.doubleValue();
-                            } else {
-                                q = bid2.price.doubleValue();
-                            }
-                            // Increment sum
-                            sum += weights[num] * q;
-                        }
-                        double pStar = sum;
-                        print("p* = " + pStar);
+                    // Calculate p*
+                    double sum = 0;
+                    // How many transactions will be used in the average?
+                    int count = Math.min(prevTransactions, WINDOW_SIZE);
+                    double[] weights = WEIGHTS[count];
+                    // Add up the weighted price for all of the transactions, most recent first
+                    for (int num = 0; num < count; num++) {
+                        sum += weights[num] * trades.price(repetitionIndex, prevTransactions - 1 - num);
+                    }
+                    double pStar = sum;
+                    print("p* = " + pStar);
 
-                        // Just guessing
-                        double thetaUnder = theta;
+                    // Just guessing
+                    double thetaUnder = theta;
 
-                        // Update tau
-                        Double newTau = null;
-                        if (isBuyer()) {
-                            // Intra-marginal
-                            if (auctions[repetitionIndex].currentValue().intValue() > pStar) {
-                                if (r >= 0 && r <= 1) {
-                                    newTau = pStar + (auctions[repetitionIndex].currentValue().doubleValue() - pStar) * ((Math.exp(r * theta) - 1d) / (Math.exp(theta) - 1d));
-                                } else if (r >= -1 && r < 0) {
-                                    newTau = pStar - (pStar - CDAGameConstants.V_MIN) * (Math.exp(-1d * r * thetaUnder) - 1d) / (Math.exp(thetaUnder - 1d));
-                                }
-                            } // Extra-marginal
-                            else {
-                                if (r >= 0 && r <= 1) {
-                                    newTau = auctions[repetitionIndex].currentValue().doubleValue();
-                                } else if (r >= -1 && r < 0) {
-                                    newTau = auctions[repetitionIndex].currentValue().doubleValue() - (auctions[repetitionIndex].currentValue().doubleValue() - CDAGameConstants.V_MIN) * ((Math.exp(-1 * r * theta) - 1d) / (Math.exp(theta) - 1d));
-                                }
+                    // Update tau
+                    Double newTau = null;
+                    if (isBuyer()) {
+                        // Intra-marginal
+                        if (auctions[repetitionIndex].currentValue().intValue() > pStar) {
+                            if (r >= 0 && r <= 1) {
+                                newTau = pStar + (auctions[repetitionIndex].currentValue().doubleValue() - pStar) * model.shape(r, theta);
+                            } else if (r >= -1 && r < 0) {
+                                newTau = pStar - model.shapeUnder(pStar - CDAGameConstants.V_MIN, r, thetaUnder);
                             }
-                        } else {
-                            // Intra-marginal
-                            if (auctions[repetitionIndex].currentValue().intValue() < pStar) {
-                                if (r >= 0 && r <= 1) {
-                                    newTau = auctions[repetitionIndex].currentValue().doubleValue() + (pStar - auctions[repetitionIndex].currentValue().doubleValue()) * ((Math.exp(-1 * r * thetaUnder) - 1d) / (Math.exp(thetaUnder) - 1d));
-                                } else if (r >= -1 && r < 0) {
-                                    newTau = pStar + (CDAGameConstants.V_MAX - pStar) * ((Math.exp(-1 * r * thetaUnder) - 1d) / (Math.exp(thetaUnder) - 1d));
-                                }
-                            } // Extra-marginal
-                            else {
-                                if (r >= 0 && r <= 1) {
-                                    newTau = auctions[repetitionIndex].currentValue().doubleValue();
-                                } else if (r >= -1 && r < 0) {
-                                    newTau = auctions[repetitionIndex].currentValue().doubleValue() + (CDAGameConstants.V_MAX - auctions[repetitionIndex].currentValue().doubleValue()) * ((Math.exp(-1 * r * theta) - 1d) / (Math.exp(theta) - 1d));
-                                }
+                        } // Extra-marginal
+                        else {
+                            if (r >= 0 && r <= 1) {
+                                newTau = auctions[repetitionIndex].currentValue().doubleValue();
+                            } else if (r >= -1 && r < 0) {
+                                newTau = auctions[repetitionIndex].currentValue().doubleValue() - (auctions[repetitionIndex].currentValue().doubleValue() - CDAGameConstants.V_MIN) * model.shape(-r, theta);
                             }
                         }
-                        // This happens
-                        if (newTau == null || newTau.equals(Double.NaN)) {
-                            continue;
+                    } else {
+                        // Intra-marginal
+                        if (auctions[repetitionIndex].currentValue().intValue() < pStar) {
+                            if (r >= 0 && r <= 1) {
+                                newTau = auctions[repetitionIndex].currentValue().doubleValue() + (pStar - auctions[repetitionIndex].currentValue().doubleValue()) * model.shape(-r, thetaUnder);
+                            } else if (r >= -1 && r < 0) {
+                                newTau = pStar + (CDAGameConstants.V_MAX - pStar) * model.shape(-r, thetaUnder);
+                            }
+                        } // Extra-marginal
+                        else {
+                            if (r >= 0 && r <= 1) {
+                                newTau = auctions[repetitionIndex].currentValue().doubleValue();
+                            } else if (r >= -1 && r < 0) {
+                                newTau = auctions[repetitionIndex].currentValue().doubleValue() + (CDAGameConstants.V_MAX - auctions[repetitionIndex].currentValue().doubleValue()) * model.shape(-r, theta);
+                            }
                         }
-                        print("new tau = " + newTau);
-                        tau = newTau;
+                    }
+                    // This happens
+                    if (newTau == null || newTau.equals(Double.NaN)) {
+                        continue;
+                    }
+                    print("new tau = " + newTau);
+                    tau = newTau;
 
-                        // In which direction should the risk factor be adjusted?
-                        double direction = 0;
-                        if (isBuyer()) {
-                            // If this bid resulted in a transaction
-                            if (Utils.isTransacted(repetitionIndex, bid)) {
-                                // Get both bids to determine q
-                                int index = Utils.TRANSACTED_BIDS.get(repetitionIndex).indexOf(bid);
-                                CDAGameBid cBid;
-                                if (bid.agentIsBuyer) {
-                                    // The corresponding ask is down one index
-                                    cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index - 1);
-                                } else {
-                                    // The corresponding bid is up one index
-                                    cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index + 1);
-                                }
-                                alreadyHandled.get(repetitionIndex).add(cBid);
-                                // Which was submitted first? 
-                                double q;
-                                if (bid.timestamp.longValue() < cBid.timestamp.longValue()) {
-                                    q = bid.price.doubleValue();
-                                } else {
-                                    q = cBid.price.doubleValue();
-                                }
-                                // Increase risk factor if target >= transaction price
-                                if (tau.doubleValue() >= q) {
-                                    direction = 1;
-                                } // Otherwise decrease risk factor
-                                else {
-                                    direction = -1;
-                                }
-                            } // This bid did not (immediately) result in a transaction
-                            else if (bid.agentIsBuyer && tau.doubleValue() <= bid.price.intValue()) {
-                                direction = -1;
+                    // In which direction should the risk factor be adjusted?
+                    double direction = 0;
+                    if (isBuyer()) {
+                        // If this bid resulted in a transaction
+                        if (bidLog.isTransacted(bid)) {
+                            // Get both bids to determine q
+                            int cBid = bidLog.counterpart(bid);
+                            alreadyHandled.set(cBid);
+                            // Which was submitted first? 
+                            double q;
+                            if (bidLog.timestamp(bid) < bidLog.timestamp(cBid)) {
+                                q = bidLog.price(bid);
+                            } else {
+                                q = bidLog.price(cBid);
                             }
-                        } else {
-                            // If this bid resulted in a transaction
-                            if (Utils.isTransacted(repetitionIndex, bid)) {
-                                // Get both bids to determine q
-                                int index = Utils.TRANSACTED_BIDS.get(repetitionIndex).indexOf(bid);
-                                CDAGameBid cBid;
-                                if (bid.agentIsBuyer) {
-                                    // The corresponding ask is down one index
-                                    cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index - 1);
-                                } else {
-                                    // The corresponding bid is up one index
-                                    cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index + 1);
-                                }
-                                alreadyHandled.get(repetitionIndex).add(cBid);
-                                // Which was submitted first? 
-                                double q;
-                                if (bid.timestamp.longValue() < cBid.timestamp.longValue()) {
-                                    q = bid.price.doubleValue();
-                                } else {
-                                    q = cBid.price.doubleValue();
-                                }
-                                // Increase risk factor if target <= transaction price
-                                if (tau.doubleValue() <= q) {
-                                    direction = 1;
-                                } // Otherwise decrease risk factor
-                                else {
-                                    direction = -1;
-                                }
-                            } // This bid did not (immediately) result in a transaction
-                            else if (!bid.agentIsBuyer && tau.doubleValue() >= bid.price.intValue()) {
+                            // Increase risk factor if target >= transaction price
+                            if (tau.doubleValue() >= q) {
+                                direction = 1;
+                            } // Otherwise decrease risk factor
+                            else {
                                 direction = -1;
                             }
+                        } // This bid did not (immediately) result in a transaction
+                        else if (bidLog.isBuy(bid) && tau.doubleValue() <= bidLog.price(bid)) {
+                            direction = -1;
                         }
-                        // No change to risk factor
-                        if (direction == 0) {
-                            continue;
-                        }
-                        // Adjust the risk factor
-                        double delta = r * (1 + direction * LAMBDA_R) + direction * LAMBDA_A;
-                        r = r + beta1 * (delta - r);
-                        print("r = " + r);
-
-                        // Calculate alpha
-                        double alpha = 0;
-                        for (int i = prevTransactions.size() - 1, num = 0; i >= 0 && num < count; i -= 2, num++) {
-                            // Get the two bids
-                            CDAGameBid bid1 = prevTransactions.get(i);
-                            CDAGameBid bid2 = prevTransactions.get(i - 1);
-                            // Get the transaction price (earliest of the two)
+                    } else {
+                        // If this bid resulted in a transaction
+                        if (bidLog.isTransacted(bid)) {
+                            // Get both bids to determine q
+                            int cBid = bidLog.counterpart(bid);
+                            alreadyHandled.set(cBid);
+                            // Which was submitted first? 
                             double q;
-                            if (bid1.timestamp.longValue() <= bid2.timestamp.longValue()) {
-                                q = bid1.price.doubleValue();
+                            if (bidLog.timestamp(bid) < bidLog.timestamp(cBid)) {
+                                q = bidLog.price(bid);
                             } else {
-                                q = bid2.price.doubleValue();
+                                q = bidLog.price(cBid);
+                            }
+                            // Increase risk factor if target <= transaction price
+                            if (tau.doubleValue() <= q) {
+                                direction = 1;
+                            } // Otherwise decrease risk factor
+                            else {
+                                direction = -1;
                             }
-                            // Increment sum
-                            alpha += Math.pow(q - pStar, 2);
+                        } // This bid did not (immediately) result in a transaction
+                        else if (!bidLog.isBuy(bid) && tau.doubleValue() >= bidLog.price(bid)) {
+                            direction = -1;
                         }
-                        alpha = Math.sqrt(alpha / count) / pStar;
+                    }
+                    // No change to risk factor
+                    if (direction == 0) {
+                        continue;
+                    }
+                    // Adjust the risk factor
+                    double delta = r * (1 + direction * LAMBDA_R) + direction * LAMBDA_A;
+                    r = r + beta1 * (delta - r);
+                    print("r = " + r);
 
-                        // Calculate alpha bar
-                        double alphaBar = (alpha - ALPHA_MIN) / (ALPHA_MAX - ALPHA_MIN);
+                    // Calculate alpha
+                    double alpha = 0;
+                    for (int num = 0; num < count; num++) {
+                        double deviation = trades.price(repetitionIndex, prevTransactions - 1 - num) - pStar;
+                        alpha += deviation * deviation;
+                    }
+                    alpha = Math.sqrt(alpha / count) / pStar;
 
-                        // Calculate theta star
-                        double thetaStar = (THETA_MAX - THETA_MIN) * (1d - alphaBar * Math.exp(GAMMA * (alphaBar - 1d))) + THETA_MIN;
+                    // Calculate alpha bar
+                    double alphaBar = (alpha - ALPHA_MIN) / (ALPHA_MAX - ALPHA_MIN);
 
-                        // Adjust the theta parameter
-                        theta = theta + beta2 * (thetaStar - theta);
-                    } catch (Exception e) {
-                        if (e.getMessage() != null) {
-                            Main.printLog("AA error: " + e.getMessage());
-                        } else {
-                            Main.printLog("AA error: null");
-                        }
+                    // Calculate theta star
+                    double thetaStar = (THETA_MAX - THETA_MIN) * (1d - model.thetaStarWeight(alphaBar)) + THETA_MIN;
+
+                    // Adjust the theta parameter
+                    theta = theta + beta2 * (thetaStar - theta);
+                } catch (Exception e) {
+                    if (e.getMessage() != null) {
+                        Main.printLog("AA error: " + e.getMessage());
+                    } else {
+                        Main.printLog("AA error: null");
                     }
                 }
             }
@@ -0,0 +1,237 @@
+package sim.cda;
+
+import java.util.Map;
+
+/**
+ * The curves AA and RB use to turn aggressiveness r and shape theta into a
+ * target price. By default they are computed exactly, as AA and RB always
+ * have, bit for bit. When the simulation spec asks for it, they are tabulated
+ * once on an (r, theta) grid and interpolated bilinearly, except off the grid
+ * and in the cells where that is not accurate enough.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class AggressivenessModel {
+
+    // Simulation spec parameter choosing the curves ("exact", default, or "table")
+    public static final String PARAM_MODEL = "aggressiveness";
+    // Simulation spec parameters holding the number of grid steps along r and theta
+    public static final String PARAM_R_STEPS = "aggressiveness_r_steps", PARAM_THETA_STEPS = "aggressiveness_theta_steps";
+    public static final int DEFAULT_R_STEPS = 200, DEFAULT_THETA_STEPS = 1200;
+    // Grid covers r in [-1, 1] and theta in [THETA_MIN, THETA_MAX] of AA (which takes in RB's THETA)
+    public static final double R_MIN = -1, R_MAX = 1, THETA_MIN = AA.THETA_MIN, THETA_MAX = AA.THETA_MAX;
+    // Alpha bar in [0, ALPHA_BAR_MAX] for the theta star curve
+    public static final double ALPHA_BAR_MAX = 4;
+    // Largest error allowed in a grid cell before it falls back to the exact curve
+    public static final double TOLERANCE = 1e-4;
+    private static final AggressivenessModel EXACT = new AggressivenessModel();
+    private static AggressivenessModel sharedTable = null;
+    private final boolean exact;
+    private final int rSteps, thetaSteps;
+    private final double rScale, thetaScale, alphaBarScale;
+    // Flattened [r index * (thetaSteps + 1) + theta index]
+    private final double[] shape, shapeUnder, rbShape;
+    // By cell, flattened [r index * thetaSteps + theta index]
+    private final boolean[] shapeExact, shapeUnderExact, rbShapeExact;
+    // By alpha bar index
+    private final double[] thetaStarWeight;
+    private double maxError = 0;
+    private int exactCells = 0;
+
+    private AggressivenessModel() {
+        exact = true;
+        rSteps = thetaSteps = 0;
+        rScale = thetaScale = alphaBarScale = 0;
+        shape = shapeUnder = rbShape = thetaStarWeight = null;
+        shapeExact = shapeUnderExact = rbShapeExact = null;
+    }
+
+    public AggressivenessModel(int rSteps, int thetaSteps) {
+        exact = false;
+        this.rSteps = rSteps;
+        this.thetaSteps = thetaSteps;
+        rScale = rSteps / (R_MAX - R_MIN);
+        thetaScale = thetaSteps / (THETA_MAX - THETA_MIN);
+        alphaBarScale = thetaSteps / ALPHA_BAR_MAX;
+        double rStep = (R_MAX - R_MIN) / rSteps, thetaStep = (THETA_MAX - THETA_MIN) / thetaSteps;
+        int columns = thetaSteps + 1;
+        shape = new double[(rSteps + 1) * columns];
+        shapeUnder = new double[(rSteps + 1) * columns];
+        rbShape = new double[(rSteps + 1) * columns];
+        for (int i = 0; i <= rSteps; i++) {
+            double r = R_MIN + i * rStep;
+            for (int j = 0; j <= thetaSteps; j++) {
+                double theta = THETA_MIN + j * thetaStep;
+                shape[i * columns + j] = exactShape(r, theta);
+                shapeUnder[i * columns + j] = exactShapeUnder(r, theta);
+                rbShape[i * columns + j] = exactRBShape(r, theta);
+            }
+        }
+        thetaStarWeight = new double[thetaSteps + 1];
+        for (int j = 0; j <= thetaSteps; j++) {
+            thetaStarWeight[j] = exactThetaStarWeight(j / alphaBarScale);
+        }
+        // Where the curves are too steep for the grid, use the exact curve instead
+        shapeExact = new boolean[rSteps * thetaSteps];
+        shapeUnderExact = new boolean[rSteps * thetaSteps];
+        rbShapeExact = new boolean[rSteps * thetaSteps];
+        for (int i = 0; i < rSteps; i++) {
+            for (int j = 0; j < thetaSteps; j++) {
+                int cell = i * thetaSteps + j;
+                // At theta = 0 AA's curve is 0/0, and AA skips the update, so keep it exact there
+                shapeExact[cell] = Math.abs(THETA_MIN + (j + 0.5) * thetaStep) <= thetaStep;
+                // Check the center and the middle of each edge of the cell
+                for (int k = 0; k < 5; k++) {
+                    double r = R_MIN + (i + (k == 1 ? 0 : k == 2 ? 1 : 0.5)) * rStep;
+                    double theta = THETA_MIN + (j + (k == 3 ? 0 : k == 4 ? 1 : 0.5)) * thetaStep;
+                    shapeExact[cell] |= error(interpolate(shape, r, theta), exactShape(r, theta)) > TOLERANCE;
+                    shapeUnderExact[cell] |= error(interpolate(shapeUnder, r, theta), exactShapeUnder(r, theta)) > TOLERANCE;
+                    rbShapeExact[cell] |= error(interpolate(rbShape, r, theta), exactRBShape(r, theta)) > TOLERANCE;
+                }
+                exactCells += (shapeExact[cell] ? 1 : 0) + (shapeUnderExact[cell] ? 1 : 0) + (rbShapeExact[cell] ? 1 : 0);
+            }
+        }
+        // Measure what is left at the centers of the cells
+        for (int i = 0; i < rSteps; i++) {
+            double r = R_MIN + (i + 0.5) * rStep;
+            for (int j = 0; j < thetaSteps; j++) {
+                double theta = THETA_MIN + (j + 0.5) * thetaStep;
+                maxError = Math.max(maxError, error(shape(r, theta), exactShape(r, theta)));
+                maxError = Math.max(maxError, error(shapeUnder(1d, r, theta), exactShapeUnder(r, theta)));
+                maxError = Math.max(maxError, error(rbShape(1d, r, theta), exactRBShape(r, theta)));
+            }
+        }
+        for (int j = 0; j < thetaSteps; j++) {
+            double alphaBar = (j + 0.5) / alphaBarScale;
+            maxError = Math.max(maxError, error(thetaStarWeight(alphaBar), exactThetaStarWeight(alphaBar)));
+        }
+    }
+
+    /**
+     * @return the model chosen by the simulation spec; tables are shared by
+     * every simulation, sized by the first spec to ask for them
+     */
+    public static synchronized AggressivenessModel get(Map<String, String> params) {
+        String model = Utils.getParam(params, PARAM_MODEL, "exact");
+        if (model.equalsIgnoreCase("exact")) {
+            return EXACT;
+        } else if (!model.equalsIgnoreCase("table")) {
+            throw new RuntimeException("Unknown aggressiveness model: " + model);
+        }
+        if (sharedTable == null) {
+            int rSteps = Integer.parseInt(Utils.getParam(params, PARAM_R_STEPS, String.valueOf(DEFAULT_R_STEPS)));
+            int thetaSteps = Integer.parseInt(Utils.getParam(params, PARAM_THETA_STEPS, String.valueOf(DEFAULT_THETA_STEPS)));
+            sharedTable = new AggressivenessModel(rSteps, thetaSteps);
+            Main.printLog("Aggressiveness tables on a " + rSteps + " x " + thetaSteps + " grid, " + sharedTable.getExactCells() + " cells left exact, largest error at cell centers: " + sharedTable.getMaxError());
+        }
+        return sharedTable;
+    }
+
+    /**
+     * (e^(r theta) - 1) / (e^theta - 1), AA's aggressiveness curve
+     */
+    public double shape(double r, double theta) {
+        int cell = cell(r, theta);
+        if (cell < 0 || shapeExact[cell]) {
+            return exactShape(r, theta);
+        }
+        return interpolate(shape, r, theta);
+    }
+
+    /**
+     * gap (e^(-r theta) - 1) / e^(theta - 1), AA's curve for an intra-marginal
+     * buyer with negative aggressiveness, scaled by the price gap it spans
+     * (exactly, multiplied before dividing as AA does)
+     */
+    public double shapeUnder(double gap, double r, double theta) {
+        int cell = cell(r, theta);
+        if (cell < 0 || shapeUnderExact[cell]) {
+            return gap * (Math.exp(-1d * r * theta) - 1d) / (Math.exp(theta - 1d));
+        }
+        return gap * interpolate(shapeUnder, r, theta);
+    }
+
+    /**
+     * gap r e^(theta (r - 1)), RB's curve for positive aggressiveness, scaled
+     * by the price gap it spans (exactly, multiplied left to right as RB does)
+     */
+    public double rbShape(double gap, double r, double theta) {
+        int cell = cell(r, theta);
+        if (cell < 0 || rbShapeExact[cell]) {
+            return gap * r * Math.exp(theta * (r - 1d));
+        }
+        return gap * interpolate(rbShape, r, theta);
+    }
+
+    /**
+     * alphaBar e^(GAMMA (alphaBar - 1)), from AA's theta star
+     */
+    public double thetaStarWeight(double alphaBar) {
+        if (exact || !(alphaBar >= 0 && alphaBar <= ALPHA_BAR_MAX)) {
+            return exactThetaStarWeight(alphaBar);
+        }
+        double x = alphaBar * alphaBarScale;
+        int j = Math.min((int) x, thetaSteps - 1);
+        double t = x - j;
+        return thetaStarWeight[j] + t * (thetaStarWeight[j + 1] - thetaStarWeight[j]);
+    }
+
+    /**
+     * @return largest error against the exact curves at the centers of the
+     * grid cells, where bilinear interpolation is furthest from its nodes
+     */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * @return number of grid cells, over all the curves, that use the exact curve
+     */
+    public int getExactCells() {
+        return exactCells;
+    }
+
+    /**
+     * @return index of the grid cell, or -1 if the point is off the grid or
+     * the model is exact
+     */
+    private int cell(double r, double theta) {
+        if (exact || !(r >= R_MIN && r <= R_MAX && theta >= THETA_MIN && theta <= THETA_MAX)) {
+            return -1;
+        }
+        int i = Math.min((int) ((r - R_MIN) * rScale), rSteps - 1);
+        int j = Math.min((int) ((theta - THETA_MIN) * thetaScale), thetaSteps - 1);
+        return i * thetaSteps + j;
+    }
+
+    private double interpolate(double[] table, double r, double theta) {
+        double x = (r - R_MIN) * rScale, y = (theta - THETA_MIN) * thetaScale;
+        int i = Math.min((int) x, rSteps - 1), j = Math.min((int) y, thetaSteps - 1);
+        double u = x - i, v = y - j;
+        int low = i * (thetaSteps + 1) + j, high = low + thetaSteps + 1;
+        double lowValue = table[low] + v * (table[low + 1] - table[low]);
+        double highValue = table[high] + v * (table[high + 1] - table[high]);
+        return lowValue + u * (highValue - lowValue);
+    }
+
+    // Absolute error below 1 and relative error above, since the curves scale a price gap
+    private static double error(double value, double exact) {
+        return Math.abs(value - exact) / Math.max(1d, Math.abs(exact));
+    }
+
+    private static double exactShape(double r, double theta) {
+        return (Math.exp(r * theta) - 1d) / (Math.exp(theta) - 1d);
+    }
+
+    private static double exactShapeUnder(double r, double theta) {
+        return (Math.exp(-1d * r * theta) - 1d) / (Math.exp(theta - 1d));
+    }
+
+    private static double exactRBShape(double r, double theta) {
+        return r * Math.exp(theta * (r - 1d));
+    }
+
+    private static double exactThetaStarWeight(double alphaBar) {
+        return alphaBar * Math.exp(AA.GAMMA * (alphaBar - 1d));
+    }
+}
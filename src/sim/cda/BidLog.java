@@ -0,0 +1,209 @@
+package sim.cda;
+
+import java.util.BitSet;
+
+/**
+ * Every bid made in a market, stored as parallel primitive arrays. A bid is
+ * known by its sequence number, the order in which it was logged. Each
+ * repetition keeps the sequence numbers of its bids, of its outstanding
+ * bid/ask stacks, and of the bids that transacted, in (ask, bid) pairs. A
+ * transacted bid also maps straight to its counterpart and trade price.
+ *
+ * Bids are added one at a time under the write lock of the market lock; the
+ * agents read the log through cursors and the read methods under its read lock.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class BidLog {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private int[] prices = new int[INITIAL_CAPACITY], agentIDs = new int[INITIAL_CAPACITY];
+    // By sequence number, offset by one so that 0 means not transacted
+    private int[] counterparts = new int[INITIAL_CAPACITY], transactedIndexes = new int[INITIAL_CAPACITY];
+    private int[] tradePrices = new int[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private final BitSet buys = new BitSet(INITIAL_CAPACITY);
+    private int size = 0;
+    // By repetition
+    private final IntDeque[] bids, bidStacks, askStacks, transacted;
+
+    public BidLog(int repetitions) {
+        bids = new IntDeque[repetitions];
+        bidStacks = new IntDeque[repetitions];
+        askStacks = new IntDeque[repetitions];
+        transacted = new IntDeque[repetitions];
+        for (int r = 0; r < repetitions; r++) {
+            bids[r] = new IntDeque(INITIAL_CAPACITY / 4);
+            bidStacks[r] = new IntDeque();
+            askStacks[r] = new IntDeque();
+            transacted[r] = new IntDeque();
+        }
+    }
+
+    /**
+     * Logs a bid and matches it against the outstanding bid/ask stacks.
+     *
+     * @return whether the bid beat the outstanding bid (or ask)
+     */
+    public boolean add(int repetitionIndex, int price, long timestamp, int agentID, boolean buy) {
+        // Add to bid list
+        if (size == prices.length) {
+            grow();
+        }
+        int seq = size++;
+        prices[seq] = price;
+        timestamps[seq] = timestamp;
+        agentIDs[seq] = agentID;
+        buys.set(seq, buy);
+        bids[repetitionIndex].addLast(seq);
+        // Update bid/ask stacks
+        IntDeque bidStack = bidStacks[repetitionIndex], askStack = askStacks[repetitionIndex];
+        boolean improving = false;
+        if (buy) {
+            if (bidStack.isEmpty() || prices[bidStack.getLast()] < price) {
+                bidStack.addLast(seq);
+                improving = true;
+            }
+        } else {
+            if (askStack.isEmpty() || prices[askStack.getLast()] > price) {
+                askStack.addLast(seq);
+                improving = true;
+            }
+        }
+        // Check for a transaction
+        if (!askStack.isEmpty() && !bidStack.isEmpty() && prices[askStack.getLast()] <= prices[bidStack.getLast()]) {
+            int ask = askStack.removeLast(), matched = bidStack.removeLast();
+            IntDeque pairs = transacted[repetitionIndex];
+            transactedIndexes[ask] = pairs.size() + 1;
+            pairs.addLast(ask);
+            transactedIndexes[matched] = pairs.size() + 1;
+            pairs.addLast(matched);
+            counterparts[ask] = matched + 1;
+            counterparts[matched] = ask + 1;
+            // Priced by the earlier of the two
+            tradePrices[ask] = tradePrices[matched] = timestamps[matched] <= timestamps[ask] ? prices[matched] : prices[ask];
+        }
+        return improving;
+    }
+
+    /**
+     * @return a cursor over the bids of the repetition, starting at the first
+     */
+    public Cursor cursor(int repetitionIndex) {
+        Cursor cursor = new Cursor();
+        cursor.reset(repetitionIndex);
+        return cursor;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int price(int seq) {
+        return prices[seq];
+    }
+
+    public long timestamp(int seq) {
+        return timestamps[seq];
+    }
+
+    public int agentID(int seq) {
+        return agentIDs[seq];
+    }
+
+    public boolean isBuy(int seq) {
+        return buys.get(seq);
+    }
+
+    public int bidCount(int repetitionIndex) {
+        return bids[repetitionIndex].size();
+    }
+
+    public int transactedCount(int repetitionIndex) {
+        return transacted[repetitionIndex].size();
+    }
+
+    /**
+     * @return sequence number of the index-th transacted bid of the repetition
+     */
+    public int transacted(int repetitionIndex, int index) {
+        return transacted[repetitionIndex].get(index);
+    }
+
+    /**
+     * @return index of the bid among the transacted bids of its repetition, or -1
+     */
+    public int transactedIndex(int seq) {
+        return transactedIndexes[seq] - 1;
+    }
+
+    public boolean isTransacted(int seq) {
+        return counterparts[seq] != 0;
+    }
+
+    /**
+     * @return sequence number of the bid it transacted with, or -1
+     */
+    public int counterpart(int seq) {
+        return counterparts[seq] - 1;
+    }
+
+    /**
+     * @return price of the transaction, or 0 if the bid did not transact
+     */
+    public int tradePrice(int seq) {
+        return tradePrices[seq];
+    }
+
+    private void grow() {
+        int capacity = prices.length * 2;
+        prices = grow(prices, capacity);
+        agentIDs = grow(agentIDs, capacity);
+        counterparts = grow(counterparts, capacity);
+        transactedIndexes = grow(transactedIndexes, capacity);
+        tradePrices = grow(tradePrices, capacity);
+        long[] grownTimestamps = new long[capacity];
+        System.arraycopy(timestamps, 0, grownTimestamps, 0, size);
+        timestamps = grownTimestamps;
+    }
+
+    private int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, size);
+        return grown;
+    }
+
+    /**
+     * Walks the bids of one repetition in the order they were made.
+     */
+    public class Cursor {
+
+        private int repetitionIndex = 0, position = 0;
+
+        /**
+         * Moves the cursor to the first bid of the repetition.
+         */
+        public void reset(int repetitionIndex) {
+            this.repetitionIndex = repetitionIndex;
+            position = 0;
+        }
+
+        public boolean hasNext() {
+            return position < bids[repetitionIndex].size();
+        }
+
+        /**
+         * @return sequence number of the next bid
+         */
+        public int next() {
+            return bids[repetitionIndex].get(position++);
+        }
+
+        /**
+         * @return number of bids already walked
+         */
+        public int position() {
+            return position;
+        }
+    }
+}
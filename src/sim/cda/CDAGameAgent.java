@@ -4,15 +4,20 @@ import ab3d.agent.Agent;
 import ab3d.auction.Bid;
 import ab3d.auction.PQBid;
 import ab3d.auction.Price;
+import ab3d.auction.Quote;
 import ab3d.auction.Transaction;
 import ab3d.comm.TACProtocol;
 import ab3d.util.Log;
 import ab3d.util.MySystem;
+import ab3d.util.TimeStamp;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Vector;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.Lock;
 import org.jdom.Element;
+import sim.cda.engine.AB3DMarketGateway;
+import sim.cda.engine.Clock;
+import sim.cda.engine.MarketGateway;
 
 /**
  *
@@ -24,31 +29,108 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
     protected CDAGameParams gameParams;
     protected CDAGameAgentAuctionData[] auctions;
     protected int repetitionIndex = 0;
+    // The clock driving this agent (null means the AB3D server time)
+    protected Clock clock = null;
+    // Where bids go and market information comes from
+    protected MarketGateway market = null;
+    // What the agent knows about the market it plays in
+    protected MarketContext context = null;
+    // Where the agent is in the game, between steps
+    private static final int REPETITION = 0, BID = 1, TRANSACTIONS = 2, FINISH = 3, LAST_UPDATE = 4, DONE = 5;
+    // What became of a turn to bid
+    private static final int BID_MADE = 0, BID_SKIPPED = 1, END_REPETITION = 2, END_GAME = 3;
+    // How a strategy's turn uses the shared market information in the context
+    protected static final int MARKET_UNUSED = 0, MARKET_READ = 1, MARKET_WRITTEN = 2;
+    private int stage = DONE, bidIndex = 0, bidCount = 0;
+    // Price chosen this turn, sent to the market once the turn is over (null if none)
+    private Integer chosenBid = null;
+    // The agent's own random stream, replaced by one seeded from the sample
+    protected SplittableRandom random = new SplittableRandom();
 
     public CDAGameAgent(String host, int port, String agentID, String agentPW) {
         super(host, port, agentID, agentPW);
+        market = new AB3DMarketGateway(this);
     }
 
     public CDAGameAgent(String host, int port, String agentID, String agentPW, Log l) {
         super(host, port, agentID, agentPW, l);
+        market = new AB3DMarketGateway(this);
     }
 
     public CDAGameAgent() {
         super();
     }
 
-    public boolean isBuyer() {
-        synchronized (Main.BUYERS) {
-            return Main.BUYERS.contains(agentName);
+    /**
+     * Joins a game without going through the AB3D agent manager.
+     */
+    public void connect(String agentName, int agentID, Log log, int gameID, long startTime, MarketGateway market) {
+        this.agentName = agentName;
+        this.agentPassword = agentName;
+        this.agentID = agentID;
+        this.log = log;
+        this.gameID = gameID;
+        this.startTime = new TimeStamp(startTime);
+        this.market = market;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public void setContext(MarketContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Replaces the random stream and redraws the agent's random parameters.
+     */
+    public void setRandom(SplittableRandom random) {
+        this.random = random;
+        initRandom();
+    }
+
+    /**
+     * Draws the random parameters of the strategy, if it has any.
+     */
+    protected void initRandom() {
+    }
+
+    @Override
+    public TimeStamp now() {
+        if (clock == null) {
+            return super.now();
+        }
+        return new TimeStamp(clock.now());
+    }
+
+    @Override
+    public void sleep(long time) {
+        if (clock == null) {
+            super.sleep(time);
+            return;
+        }
+        try {
+            clock.sleepUntil(time);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    protected final void pause(long millis) {
+        sleep(now().longValue() + millis);
+    }
+
+    public boolean isBuyer() {
+        return context.isBuyer(agentName);
+    }
+
     protected final void log(String strat, String method, String msg) {
         log.log(Log.INFO, strat + "::" + method + ":  " + msg);
     }
 
     public int readGameParams(Integer gameID) {
-        Element e = getGameParams(gameID);
+        Element e = market.getGameParams();
         try {
             if (e.getChild("auctionValues") != null) {
                 gameParams = new CDAGameParams(e);
@@ -69,16 +151,13 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
         log(logID, "readParams", "Starting");
 
         // Read the auction IDs
-        List<Integer> auctionIDs = new LinkedList<Integer>();
-        for (Object o : getGameAuctionIDs()) {
-            Element elmnt = (Element) o;
-            try {
-                auctionIDs.add(Integer.valueOf(elmnt.getText()));
-            } catch (NumberFormatException e) {
-                deb("invalid message");
-                commandStatus = _BAD_MESSAGE;
-                return;
-            }
+        List<Integer> auctionIDs;
+        try {
+            auctionIDs = market.getAuctionIDs();
+        } catch (NumberFormatException e) {
+            deb("invalid message");
+            commandStatus = _BAD_MESSAGE;
+            return;
         }
 
         // Also read the game params
@@ -96,118 +175,238 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
     @Override
     public void run() {
         try {
-            log(logID, "run", "Starting");
-
-            // Wait for the next games to begin
-            while (!nextGame()) {
-                log(logID, "run", "Waiting for next game");
-                MySystem.sleep(1);
-            }
-
-            // Something went wrong, exit
-            if ((gameID == null) && (gameID.intValue() == -1)) {
-                log(logID, "run", "Bad game ID value (" + gameID + ")");
+            if (!begin()) {
                 return;
             }
+            // Wait for each step of the game
+            long next = getStartTime().longValue();
+            while (next >= 0) {
+                sleep(next);
+                next = step();
+            }
+        } finally {
+            // All done, bye bye
+            log(logID, "run", "Exiting");
+        }
+    }
 
-            // Read game information from the server and wait for the game to start
-            readParams();
-            log(logID, "run", "Waiting for the game to begin at " + getStartTime().longValue());
-            sleep(getStartTime().longValue());
-
-            // Repeat the circumstances of the auction some number of times
-            REPETITIONS:
-            for (; repetitionIndex < CDAGameConstants.AUCTION_REPETITIONS; repetitionIndex++) {
-                // Wait for the repetition bidding time start
-                if (repetitionIndex > 0) {
-                    sleep(getStartTime().longValue() + repetitionIndex * CDAGameConstants.AUCTION_LEN);
-                }
+    /**
+     * Joins the next game and reads its parameters. The first step is due at
+     * the start time of the game.
+     *
+     * @return false if something went wrong
+     */
+    public final boolean begin() {
+        log(logID, "run", "Starting");
+
+        // Wait for the next games to begin
+        while (!market.nextGame()) {
+            log(logID, "run", "Waiting for next game");
+            MySystem.sleep(1);
+        }
+
+        // Something went wrong, exit
+        if ((gameID == null) && (gameID.intValue() == -1)) {
+            log(logID, "run", "Bad game ID value (" + gameID + ")");
+            return false;
+        }
+
+        // Read game information from the server and wait for the game to start
+        readParams();
+        log(logID, "run", "Waiting for the game to begin at " + getStartTime().longValue());
+        repetitionIndex = 0;
+        stage = REPETITION;
+        return true;
+    }
+
+    /**
+     * Plays the game up to the next time the agent would wait. The agent takes
+     * the market lock itself while it works on shared market information.
+     *
+     * @return when the next step is due, or -1 when the game is over
+     */
+    public final long step() {
+        switch (stage) {
+            case REPETITION:
                 print("");
                 print("Round " + repetitionIndex);
                 // How many times will the agent be able to bid?
-                int bids = (int) Math.floor(((double) (CDAGameConstants.AUCTION_LEN - CDAGameConstants.AUCTION_BUFFER_LEN) / (double) CDAGameConstants.BID_SLEEP_TIME) - 1d);
-                for (int bid = 0; bid < bids; bid++) {
-                    try {
-                        synchronized (Utils.BID_LOCK) {
-                            // Update auction state
-                            if (updateAuction() == 0) {
-                                break REPETITIONS;
-                            }
-                            // Adjust the agent's state based upon the the updated auction
-                            adjustState();
-                            // Has this agent made all possible trades?
-                            if (auctions[repetitionIndex].holdings >= CDAGameConstants.MAX_TRADES) {
-                                continue;
-                            }
-                            // Check for time to double check that the bid is being submitted to the correct auction
-                            long repEndTime = getStartTime().longValue() + (repetitionIndex + 1) * CDAGameConstants.AUCTION_LEN;
-                            if (now().longValue() > repEndTime - CDAGameConstants.AUCTION_BUFFER_LEN * 0.5) {
-                                Main.printLog("Stopped late bid submission (by " + (now().longValue() - repEndTime + CDAGameConstants.AUCTION_BUFFER_LEN * 0.5) + ") .");
-                                break;
-                            }
-                            // What is the ID of the current bid?
-                            PQBid oldBid = null;
-                            if (auctions[repetitionIndex].currentBid() != null) {
-                                oldBid = auctions[repetitionIndex].currentBid();
-                            }
-                            // Calculate and submit a bid
-                            submitBids();
-                            // Make the same bid if did not make a new bid this round
-                            if (auctions[repetitionIndex].currentBid() == null) {
-                                print("Current bid is null, submitting default bid.");
-                                if (isBuyer()) {
-                                    submitBid(CDAGameConstants.V_MIN);
-                                } else {
-                                    submitBid(CDAGameConstants.V_MAX);
-                                }
-                            } else if (oldBid != null && oldBid.toXMLString().equals(auctions[repetitionIndex].currentBid().toXMLString())) {
-                                print("Old bid and current bid are equivalent, so resubmitting bid price.");
-                                submitBid(auctions[repetitionIndex].currentBid().bidArray[0].getprice().intValue());
-                            }
-                        }
-                        // Wait a little longer if this is the last bid (to update transactions)
-                        if (bid == bids - 1) {
-                            try {
-                                Thread.sleep((int) (CDAGameConstants.AUCTION_BUFFER_LEN * 0.5));
-                            } catch (Exception e) {
-                            }
-                        }
-                        synchronized (Utils.BID_LOCK) {
-                            // See if any transactions occurred as a result of this bid
-                            updateTransactions();
-                        }
-                    } catch (Exception e) {
-                        try {
-                            Main.printLog("Error: " + e.getMessage());
-                        } catch (Exception ee) {
-                        }
-                    } finally {
-                        // Wait for the next time to bid
-                        if (bid < bids - 1) {
-                            long wakeTime = getStartTime().longValue() + repetitionIndex * CDAGameConstants.AUCTION_LEN + (bid + 1) * CDAGameConstants.BID_SLEEP_TIME - (long) (Utils.RANDOM.nextDouble() * CDAGameConstants.BID_SLEEP_TIME * 0.25);
-                            if (wakeTime > now().longValue()) {
-                                sleep(wakeTime);
-                            } else {
-                                try {
-                                    Thread.sleep(1);
-                                } catch (Exception e) {
-                                }
-                            }
-                        }
-                    }
+                bidCount = (int) Math.floor(((double) (CDAGameConstants.AUCTION_LEN - CDAGameConstants.AUCTION_BUFFER_LEN) / (double) CDAGameConstants.BID_SLEEP_TIME) - 1d);
+                bidIndex = 0;
+                if (bidCount <= 0) {
+                    return endBid(END_REPETITION);
                 }
+                stage = BID;
+                return stepBid();
+            case BID:
+                return stepBid();
+            case TRANSACTIONS:
+                try {
+                    // See if any transactions occurred as a result of this bid
+                    updateTransactions();
+                } catch (Exception e) {
+                    printError(e);
+                }
+                return endBid(BID_MADE);
+            case FINISH:
+                // Wait and update the last auction one more time to get the transactions
+                stage = LAST_UPDATE;
+                return now().longValue() + (long) (CDAGameConstants.AUCTION_BUFFER_LEN * 0.5);
+            case LAST_UPDATE:
+                // Update auction state (to get transactions)
+                repetitionIndex = CDAGameConstants.AUCTION_REPETITIONS - 1;
+                updateAuction();
+                stage = DONE;
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    private long stepBid() {
+        int outcome;
+        try {
+            outcome = makeBid();
+            if (outcome == BID_MADE) {
+                // Wait a little longer if this is the last bid (to update transactions)
+                if (bidIndex == bidCount - 1) {
+                    stage = TRANSACTIONS;
+                    return now().longValue() + (long) (CDAGameConstants.AUCTION_BUFFER_LEN * 0.5);
+                }
+                // See if any transactions occurred as a result of this bid
+                updateTransactions();
             }
-            // Wait and update the last auction one more time to get the transactions
-            try {
-                Thread.sleep((long) (CDAGameConstants.AUCTION_BUFFER_LEN * 0.5));
-            } catch (Exception e) {
+        } catch (Exception e) {
+            printError(e);
+            outcome = BID_MADE;
+        }
+        return endBid(outcome);
+    }
+
+    /**
+     * @return what became of this turn to bid
+     */
+    private int makeBid() {
+        // Read the market first, it can be a round trip to the server
+        List<Transaction> newTransactions = fetchTransactions();
+        Quote quote = fetchQuote();
+        // Update auction state
+        if (updateAuction(newTransactions, quote) == 0) {
+            return END_GAME;
+        }
+        // Stop bidding once the repetition has nothing more to give
+        if (context.quiescence != null && context.quiescence.update(repetitionIndex, agentID.intValue(), isBuyer(), auctions[repetitionIndex].currentValue(), now().longValue())) {
+            print("Repetition quiescent.");
+            return END_REPETITION;
+        }
+        // Hold the market lock only as the strategy needs it
+        Lock lock = getMarketAccess() == MARKET_WRITTEN ? context.marketLock.writeLock() : getMarketAccess() == MARKET_READ ? context.marketLock.readLock() : null;
+        chosenBid = null;
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            // Adjust the agent's state based upon the the updated auction
+            adjustState();
+            // Has this agent made all possible trades?
+            if (auctions[repetitionIndex].holdings >= CDAGameConstants.MAX_TRADES) {
+                return BID_SKIPPED;
+            }
+            // Check for time to double check that the bid is being submitted to the correct auction
+            long repEndTime = getRepetitionEnd(repetitionIndex);
+            if (now().longValue() > repEndTime - CDAGameConstants.AUCTION_BUFFER_LEN * 0.5) {
+                Main.printLog("Stopped late bid submission (by " + (now().longValue() - repEndTime + CDAGameConstants.AUCTION_BUFFER_LEN * 0.5) + ") .");
+                return END_REPETITION;
             }
-            // Update auction state (to get transactions)
-            repetitionIndex = CDAGameConstants.AUCTION_REPETITIONS - 1;
-            updateAuction();
+            // Calculate a bid
+            submitBids();
         } finally {
-            // All done, bye bye
-            log(logID, "run", "Exiting");
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        // Make the same bid if did not make a new bid this round
+        if (chosenBid == null) {
+            if (auctions[repetitionIndex].currentBid() == null) {
+                print("Current bid is null, submitting default bid.");
+                if (isBuyer()) {
+                    submitBid(CDAGameConstants.V_MIN);
+                } else {
+                    submitBid(CDAGameConstants.V_MAX);
+                }
+            } else {
+                print("No new bid, so resubmitting bid price.");
+                submitBid(auctions[repetitionIndex].currentBid().bidArray[0].getprice().intValue());
+            }
+        }
+        sendBid();
+        return BID_MADE;
+    }
+
+    /**
+     * @return how adjustState() and submitBids() use the shared market
+     * information in the context, which decides whether they run under the
+     * read lock, the write lock or no lock at all
+     */
+    protected int getMarketAccess() {
+        return MARKET_UNUSED;
+    }
+
+    /**
+     * @return when the repetition starts, as the market's schedule has it at
+     * the moment (repetitions of a game AB3D runs start at fixed times)
+     */
+    protected final long getRepetitionStart(int repetition) {
+        if (context.schedule != null) {
+            return context.schedule.getStart(repetition);
+        }
+        return getStartTime().longValue() + repetition * CDAGameConstants.AUCTION_LEN;
+    }
+
+    /**
+     * @return when the repetition ends, as the market's schedule has it at
+     * the moment
+     */
+    protected final long getRepetitionEnd(int repetition) {
+        if (context.schedule != null) {
+            return context.schedule.getEnd(repetition);
+        }
+        return getStartTime().longValue() + (repetition + 1) * CDAGameConstants.AUCTION_LEN;
+    }
+
+    /**
+     * Moves on from the current turn to bid.
+     *
+     * @return when the next step is due
+     */
+    private long endBid(int outcome) {
+        // Wait for the next time to bid
+        long next = now().longValue();
+        if (bidIndex < bidCount - 1) {
+            long wakeTime = getRepetitionStart(repetitionIndex) + (bidIndex + 1) * CDAGameConstants.BID_SLEEP_TIME - (long) (random.nextDouble() * CDAGameConstants.BID_SLEEP_TIME * 0.25);
+            next = wakeTime > next ? wakeTime : next + 1;
+        }
+        if (outcome == END_GAME) {
+            stage = FINISH;
+            return next;
+        }
+        stage = BID;
+        if (outcome != END_REPETITION && ++bidIndex < bidCount) {
+            return next;
+        }
+        // Wait for the next repetition bidding time start
+        if (++repetitionIndex < CDAGameConstants.AUCTION_REPETITIONS) {
+            stage = REPETITION;
+            return Math.max(next, getRepetitionStart(repetitionIndex));
+        }
+        stage = FINISH;
+        return next;
+    }
+
+    private void printError(Exception e) {
+        try {
+            Main.printLog("Error: " + e.getMessage());
+        } catch (Exception ee) {
         }
     }
 
@@ -215,16 +414,20 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
     public void stop() {
     }
 
-    protected final PQBid submitBid(int bid) {
+    /**
+     * Chooses the price to bid this turn. The bid goes to the market once the
+     * turn is over, outside the lock the turn held.
+     */
+    protected final void submitBid(int bid) {
         // Make sure no bids are made after 10 units have been traded
         if (auctions[repetitionIndex].currentValue() == null) {
-            return null;
+            return;
         }
         // Make sure the bid is not generating negative utility
         if ((isBuyer() && bid > auctions[repetitionIndex].currentValue().intValue())
                 || (!isBuyer() && bid < auctions[repetitionIndex].currentValue().intValue())) {
-            Main.printLog("Bad bid by agent " + agentID + ". (Bid " + bid + ", Value " + auctions[repetitionIndex].currentValue().intValue() + ", Buyer " + Main.isBuyer(agentName) + ")");
-            return null;
+            Main.printLog("Bad bid by agent " + agentID + ". (Bid " + bid + ", Value " + auctions[repetitionIndex].currentValue().intValue() + ", Buyer " + isBuyer() + ")");
+            return;
         }
         // Dummy check
         if (bid > CDAGameConstants.V_MAX) {
@@ -232,6 +435,20 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
         } else if (bid < CDAGameConstants.V_MIN) {
             bid = CDAGameConstants.V_MIN;
         }
+        chosenBid = bid;
+    }
+
+    /**
+     * Sends the bid chosen this turn to the market, then logs it as the
+     * market answered it. Only for markets that number their bids does the
+     * round trip happen outside the write lock.
+     */
+    private void sendBid() {
+        if (chosenBid == null) {
+            return;
+        }
+        int bid = chosenBid.intValue();
+        chosenBid = null;
 
         // Generate the new bid, remember the old
         PQBid oldBid = auctions[repetitionIndex].currentBid();
@@ -241,22 +458,32 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
         newBid.addPoint(isBuyer() ? 1 : -1, new Price(bid));
         log(logID, "submitBid", "Bid placed to auction #" + auctions[repetitionIndex].id + " (" + newBid.getBidString() + ")");
 
-        // Recall that all bids are synchronized, so there won't be an issue with this shared memory
-        CDAGameBid logBid = new CDAGameBid();
-        logBid.price = bid;
-        logBid.timestamp = now();
-        logBid.agentIsBuyer = isBuyer();
-        logBid.agentID = agentID;
-        Utils.addBid(repetitionIndex, logBid);
-
-        // Submit the bid to the auction
+        // A market that does not number its bids (AB3D) is only known to take
+        // them in the order the bid log sees them if they go one at a time, so
+        // there the bid goes to the market holding the write lock
+        Lock lock = context.hasNumberedBids() ? null : context.marketLock.writeLock();
+        if (lock != null) {
+            lock.lock();
+        }
         Bid responseBid;
-        if (oldBid == null) {
-            print("Submitting new bid: " + bid + " (Value " + auctions[repetitionIndex].currentValue().intValue() + ")");
-            responseBid = submitBid(newBid, auctions[repetitionIndex].id);
-        } else {
-            print("Replacing bid: " + bid + " (Value " + auctions[repetitionIndex].currentValue().intValue() + ")");
-            responseBid = submitBid(newBid, auctions[repetitionIndex].id);
+        try {
+            // Submit the bid to the auction
+            long sent = now().longValue();
+            if (oldBid == null) {
+                print("Submitting new bid: " + bid + " (Value " + auctions[repetitionIndex].currentValue().intValue() + ")");
+                responseBid = market.submitBid(newBid, auctions[repetitionIndex].id);
+            } else {
+                print("Replacing bid: " + bid + " (Value " + auctions[repetitionIndex].currentValue().intValue() + ")");
+                responseBid = market.submitBid(newBid, auctions[repetitionIndex].id);
+            }
+
+            // Log the bid in the shared memory, at the time the market took it if it numbers its bids
+            long timestamp = lock == null && responseBid.timestamp != null ? responseBid.timestamp.longValue() : sent;
+            context.addBid(responseBid.bid_id, repetitionIndex, bid, timestamp, agentID.intValue(), isBuyer());
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
         }
 
         // Check for error
@@ -270,8 +497,6 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
         // Log this bid
         newBid.bid_id = responseBid.bid_id;
         auctions[repetitionIndex].setBid(newBid);
-
-        return newBid;
     }
 
     public void adjustState() {
@@ -280,99 +505,43 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
     public abstract void submitBids();
 
     public void updateTransactions() {
-        if (!auctions[repetitionIndex].closed) {
-            // Update holdings
-            Vector newTransactions = getNewTransactions();
-            if (newTransactions != null) {
-                print("Transactions: " + newTransactions.size());
-                for (Object o : newTransactions) {
-                    Transaction transaction = (Transaction) o;
-                    // To which repetition does this transaction belong?
-                    int belongingRepetition = repetitionIndex;
-                    if (repetitionIndex > 0 && transaction.timestamp.longValue() < getStartTime().longValue() + repetitionIndex * CDAGameConstants.AUCTION_LEN) {
-                        belongingRepetition = repetitionIndex - 1;
-                    }
-                    print("Belonging repetition: " + belongingRepetition);
-                    // Log transaction
-                    if (!Utils.TRANSACTIONS.containsKey(belongingRepetition)) {
-                        Utils.TRANSACTIONS.put(belongingRepetition, new ArrayList<Transaction>());
-                    }
-                    // Is this a duplicate transaction? (there are 2 reports per transaction)
-                    boolean dupe = false;
-                    for (Transaction t : Utils.TRANSACTIONS.get(belongingRepetition)) {
-                        if (transaction.price.intValue() == t.price.intValue()
-                                && transaction.timestamp.longValue() == t.timestamp.longValue()
-                                && transaction.buyerID.intValue() == t.buyerID.intValue()
-                                && transaction.sellerID.intValue() == t.sellerID.intValue()) {
-                            dupe = true;
-                        }
-                    }
-                    if (!dupe) {
-                        Utils.TRANSACTIONS.get(belongingRepetition).add(transaction);
-                    }
-                    // Update holdings
-                    if (transaction.buyerID.intValue() == agentID.intValue() || transaction.sellerID.intValue() == agentID.intValue()) {
-                        if (belongingRepetition == repetitionIndex) {
-                            print("Transaction occurred.");
-                        } else {
-                            print("Transaction occurred (at end of last round).");
-                        }
-                        if (auctions[belongingRepetition].holdings < CDAGameConstants.MAX_TRADES) {
-                            auctions[belongingRepetition].holdings++;
-                        }
-                    }
-                }
-            }
-        }
+        recordTransactions(fetchTransactions());
     }
 
     public int updateAuction() {
+        List<Transaction> newTransactions = fetchTransactions();
+        Quote quote = fetchQuote();
+        return updateAuction(newTransactions, quote);
+    }
+
+    /**
+     * @return transactions the market has made since the last call, or null
+     * if the auction is closed
+     */
+    private List<Transaction> fetchTransactions() {
+        if (auctions[repetitionIndex].closed) {
+            return null;
+        }
+        return market.getNewTransactions();
+    }
+
+    /**
+     * @return the market's quote, or null if the auction is closed
+     */
+    private Quote fetchQuote() {
+        if (auctions[repetitionIndex].closed) {
+            return null;
+        }
+        return market.getQuote(auctions[repetitionIndex].id);
+    }
+
+    private int updateAuction(List<Transaction> newTransactions, Quote quote) {
         int open = 0;
         if (!auctions[repetitionIndex].closed) {
             // Update holdings
-            Vector newTransactions = getNewTransactions();
-            if (newTransactions != null) {
-                print("Transactions: " + newTransactions.size());
-                for (Object o : newTransactions) {
-                    Transaction transaction = (Transaction) o;
-                    // To which repetition does this transaction belong?
-                    int belongingRepetition = repetitionIndex;
-                    if (repetitionIndex > 0 && transaction.timestamp.longValue() < getStartTime().longValue() + repetitionIndex * CDAGameConstants.AUCTION_LEN) {
-                        belongingRepetition = repetitionIndex - 1;
-                    }
-                    print("Belonging repetition: " + belongingRepetition);
-                    // Log transaction
-                    if (!Utils.TRANSACTIONS.containsKey(belongingRepetition)) {
-                        Utils.TRANSACTIONS.put(belongingRepetition, new ArrayList<Transaction>());
-                    }
-                    // Is this a duplicate transaction? (there are 2 reports per transaction)
-                    boolean dupe = false;
-                    for (Transaction t : Utils.TRANSACTIONS.get(belongingRepetition)) {
-                        if (transaction.price.intValue() == t.price.intValue()
-                                && transaction.timestamp.longValue() == t.timestamp.longValue()
-                                && transaction.buyerID.intValue() == t.buyerID.intValue()
-                                && transaction.sellerID.intValue() == t.sellerID.intValue()) {
-                            dupe = true;
-                        }
-                    }
-                    if (!dupe) {
-                        Utils.TRANSACTIONS.get(belongingRepetition).add(transaction);
-                    }
-                    // Update holdings
-                    if (transaction.buyerID.intValue() == agentID.intValue() || transaction.sellerID.intValue() == agentID.intValue()) {
-                        if (belongingRepetition == repetitionIndex) {
-                            print("Transaction occurred.");
-                        } else {
-                            print("Transaction occurred (at end of last round).");
-                        }
-                        if (auctions[belongingRepetition].holdings < CDAGameConstants.MAX_TRADES) {
-                            auctions[belongingRepetition].holdings++;
-                        }
-                    }
-                }
-            }
+            recordTransactions(newTransactions);
             // Update quote
-            auctions[repetitionIndex].quote = getQuote(null, auctions[repetitionIndex].id);
+            auctions[repetitionIndex].quote = quote;
             if (auctions[repetitionIndex].quote == null || auctions[repetitionIndex].quote.as == null || auctions[repetitionIndex].quote.as.intValue() == TACProtocol.AS_AUCTION_CLOSED) {
                 auctions[repetitionIndex].closed = true;
                 print("Auction closed.");
@@ -384,6 +553,55 @@ public abstract class CDAGameAgent extends Agent implements Runnable {
         return open;
     }
 
+    // Takes the write lock, never call it holding the read lock
+    private void recordTransactions(List<Transaction> newTransactions) {
+        if (newTransactions == null) {
+            return;
+        }
+        context.marketLock.writeLock().lock();
+        try {
+            print("Transactions: " + newTransactions.size());
+            for (Transaction transaction : newTransactions) {
+                // To which repetition does this transaction belong?
+                int belongingRepetition = repetitionIndex;
+                if (repetitionIndex > 0 && transaction.timestamp.longValue() < getRepetitionStart(repetitionIndex)) {
+                    belongingRepetition = repetitionIndex - 1;
+                }
+                print("Belonging repetition: " + belongingRepetition);
+                // Log transaction
+                if (!context.transactions.containsKey(belongingRepetition)) {
+                    context.transactions.put(belongingRepetition, new ArrayList<Transaction>());
+                }
+                // Is this a duplicate transaction? (there are 2 reports per transaction)
+                boolean dupe = false;
+                for (Transaction t : context.transactions.get(belongingRepetition)) {
+                    if (transaction.price.intValue() == t.price.intValue()
+                            && transaction.timestamp.longValue() == t.timestamp.longValue()
+                            && transaction.buyerID.intValue() == t.buyerID.intValue()
+                            && transaction.sellerID.intValue() == t.sellerID.intValue()) {
+                        dupe = true;
+                    }
+                }
+                if (!dupe) {
+                    context.transactions.get(belongingRepetition).add(transaction);
+                }
+                // Update holdings
+                if (transaction.buyerID.intValue() == agentID.intValue() || transaction.sellerID.intValue() == agentID.intValue()) {
+                    if (belongingRepetition == repetitionIndex) {
+                        print("Transaction occurred.");
+                    } else {
+                        print("Transaction occurred (at end of last round).");
+                    }
+                    if (auctions[belongingRepetition].holdings < CDAGameConstants.MAX_TRADES) {
+                        auctions[belongingRepetition].holdings++;
+                    }
+                }
+            }
+        } finally {
+            context.marketLock.writeLock().unlock();
+        }
+    }
+
     protected void print(String msg) {
 //        if (agentName.equals("aa1")) {
 //            System.out.println(msg);
@@ -1,15 +0,0 @@
-package sim.cda;
-
-import ab3d.util.TimeStamp;
-
-/**
- *
- * @author Augie
- */
-public class CDAGameBid {
-
-    public Integer price = null;
-    public TimeStamp timestamp = null;
-    public Integer agentID = null;
-    public Boolean agentIsBuyer = null;
-}
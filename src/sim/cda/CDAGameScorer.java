@@ -16,6 +16,7 @@ import java.util.Map;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.output.XMLOutputter;
+import sim.cda.engine.RepetitionSchedule;
 
 /**
  * 
@@ -23,10 +24,16 @@ import org.jdom.output.XMLOutputter;
  */
 public class CDAGameScorer extends Scorer {
 
-    // Maps <agent ID, <private value>>
-    private Map<Integer, List<Integer>> agentValues = new HashMap<Integer, List<Integer>>();
+    // Maps <agent ID, scoring data>
+    private Map<Integer, AgentScore> agents = new HashMap<Integer, AgentScore>();
     // Maps auction index to single unit auction scoring data
     private CDAGameAuctionScore[] repetitions = new CDAGameAuctionScore[CDAGameConstants.AUCTION_REPETITIONS];
+    // Who is a buyer
+    private MarketContext context = null;
+    // Maps <agent ID, values> read from an AB3D log, until the context is known
+    private Map<Integer, List<Integer>> logValues = new HashMap<Integer, List<Integer>>();
+    // Repetitions run [start, end) on the schedule of a game not run by AB3D (null for AB3D's logs, where they run (start, end])
+    private RepetitionSchedule schedule = null;
 
     @Override
     public int generateScore(String logFilename, String xmlFilename) {
@@ -34,21 +41,96 @@ public class CDAGameScorer extends Scorer {
         init();
 
         // Read the logs
+        logValues.clear();
         if (readLog(logFilename) != 0) {
             log(Log.ERROR, "CDAGameScorer::generateScore:  Error reading log file: " + logFilename);
             return -1;
         }
 
-        // Calculate a score for each agent
-        Element results = new Element("results");
+        // The simulation running the game knows who is a buyer
+        context = MarketContext.getGame(m_gameID);
+        if (context == null) {
+            log(Log.ERROR, "CDAGameScorer::generateScore:  No simulation is running game: " + m_gameID);
+            return -1;
+        }
+        for (int agentID : logValues.keySet()) {
+            addValues(agentID, logValues.get(agentID));
+        }
 
-        // Report the transactions that occurred
-        Element transactions = new Element("transactions");
-        results.addContent(transactions);
+        return writeResults(xmlFilename);
+    }
+
+    /**
+     * Scores a game that was not run by AB3D. Its repetitions start and end
+     * on the schedule the market and the agents followed.
+     */
+    public void setSchedule(RepetitionSchedule schedule) {
+        this.schedule = schedule;
+        m_startTime = schedule.getStart(0);
+    }
+
+    public void setContext(MarketContext context) {
+        this.context = context;
+    }
+
+    public void addValues(int agentID, List<Integer> values) {
+        List<Integer> sorted = new LinkedList<Integer>(values);
+        // Sort agent values
+        Collections.sort(sorted);
+        // Reverse if it's a buyer
+        boolean buyer = isBuyer(agentID);
+        if (buyer) {
+            Collections.reverse(sorted);
+        }
+        agents.put(agentID, new AgentScore(buyer, sorted));
+    }
+
+    private boolean isBuyer(int agentID) {
+        return context.isBuyer(Main.getAgent(String.valueOf(agentID)));
+    }
+
+    public void addTransaction(long timestamp, int buyerID, int sellerID, Price price) {
+        // Find the auction repetition to which this transaction belongs
+        int repetition = -1;
+        if (schedule != null) {
+            repetition = schedule.getRepetition(timestamp);
+        } else if (timestamp > m_startTime.longValue()) {
+            long thisRepetition = (timestamp - m_startTime.longValue() - 1) / CDAGameConstants.AUCTION_LEN;
+            if (thisRepetition < CDAGameConstants.AUCTION_REPETITIONS) {
+                repetition = (int) thisRepetition;
+            }
+        }
+        if (repetition == -1) {
+            Main.printLog("Wat? Auction: " + m_startTime.longValue() + " - " + (m_startTime.longValue() + CDAGameConstants.AUCTION_REPETITIONS * CDAGameConstants.AUCTION_LEN) + ", Transaction: " + timestamp);
+            Main.printLog("Before? " + (timestamp < m_startTime.longValue()));
+            Main.printLog("After? " + (timestamp > m_startTime.longValue() + CDAGameConstants.AUCTION_REPETITIONS * CDAGameConstants.AUCTION_LEN));
+            if (timestamp < m_startTime.longValue()) {
+                repetition = 0;
+            } else {
+                repetition = CDAGameConstants.AUCTION_REPETITIONS - 1;
+            }
+        }
+
+        // Create the auction score if it does not exist
+        if (repetitions[repetition] == null) {
+            repetitions[repetition] = new CDAGameAuctionScore();
+        }
+
+        CDAGameAuctionScoreTransaction t = new CDAGameAuctionScoreTransaction();
+        t.transactionTimestamp = timestamp;
+        t.sellerID = sellerID;
+        t.buyerID = buyerID;
+        t.transactionPrice = price;
+        repetitions[repetition].transactions.add(t);
+    }
+
+    /**
+     * Scores every agent, without writing anything out.
+     */
+    public GameScores score() {
+        // Sort transactions by timestamp
         for (int i = 0; i < repetitions.length; i++) {
             if (repetitions[i] != null) {
-
-                // Sort transactions by timestamp
                 Collections.sort(repetitions[i].transactions, new Comparator<CDAGameAuctionScoreTransaction>() {
 
                     @Override
@@ -56,7 +138,66 @@ public class CDAGameScorer extends Scorer {
                         return o1.transactionTimestamp.compareTo(o2.transactionTimestamp);
                     }
                 });
+            }
+        }
+
+        // Calculate scores in a single pass over the transactions
+        for (AgentScore agent : agents.values()) {
+            agent.surplus = 0;
+            agent.trades = 0;
+        }
+        for (int i = 0; i < repetitions.length; i++) {
+            if (repetitions[i] == null) {
+                continue;
+            }
+            // Every repetition starts again from the first value
+            for (AgentScore agent : agents.values()) {
+                agent.traded = 0;
+            }
+            for (CDAGameAuctionScoreTransaction t : repetitions[i].transactions) {
+                int price = t.transactionPrice.intValue();
+                AgentScore buyer = agents.get(t.buyerID);
+                if (buyer != null && buyer.buyer && buyer.traded < CDAGameConstants.MAX_TRADES) {
+                    buyer.surplus += buyer.values[buyer.traded++] - price;
+                }
+                AgentScore seller = agents.get(t.sellerID);
+                if (seller != null && !seller.buyer && seller.traded < CDAGameConstants.MAX_TRADES) {
+                    seller.surplus += price - seller.values[seller.traded++];
+                }
+            }
+            for (AgentScore agent : agents.values()) {
+                agent.trades += agent.traded;
+            }
+        }
+        GameScores scores = new GameScores();
+        for (int aID : agents.keySet()) {
+            AgentScore agent = agents.get(aID);
+            double score = agent.surplus / (double) CDAGameConstants.AUCTION_REPETITIONS;
+            scores.add(new GameScores.Agent(aID, Main.getAgent(String.valueOf(aID)), agent.values.clone(), agent.trades, score));
+        }
+        return scores;
+    }
+
+    /**
+     * Scores every agent and writes the results, along with every
+     * transaction, to an XML file.
+     */
+    public int writeResults(String xmlFilename) {
+        return writeResults(xmlFilename, score());
+    }
 
+    /**
+     * Writes scores already made by score() to an XML file.
+     */
+    public int writeResults(String xmlFilename, GameScores gameScores) {
+        // Calculate a score for each agent
+        Element results = new Element("results");
+
+        // Report the transactions that occurred
+        Element transactions = new Element("transactions");
+        results.addContent(transactions);
+        for (int i = 0; i < repetitions.length; i++) {
+            if (repetitions[i] != null) {
                 Element repetition = new Element("repetition");
                 transactions.addContent(repetition);
                 repetition.addContent(new Element("id").setText(String.valueOf(i + 1)));
@@ -71,46 +212,20 @@ public class CDAGameScorer extends Scorer {
             }
         }
 
-        // Calculate scores
+        // Report the scores
         Element scores = new Element("scores");
         results.addContent(scores);
-        for (int aID : agentValues.keySet()) {
-            double sum = 0;
-            for (int i = 0; i < repetitions.length; i++) {
-                if (repetitions[i] == null) {
-                    continue;
-                }
-                int valueIndex = 0;
-                for (CDAGameAuctionScoreTransaction t : repetitions[i].transactions) {
-                    if (Main.isBuyer(Main.getAgent(String.valueOf(aID)))) {
-                        if (t.buyerID.intValue() == aID) {
-                            if (valueIndex >= CDAGameConstants.MAX_TRADES) {
-                                continue;
-                            }
-                            sum += agentValues.get(aID).get(valueIndex++).intValue() - t.transactionPrice.intValue();
-                        }
-                    } else {
-                        if (t.sellerID.intValue() == aID) {
-                            if (valueIndex >= CDAGameConstants.MAX_TRADES) {
-                                continue;
-                            }
-                            sum += t.transactionPrice.intValue() - agentValues.get(aID).get(valueIndex++).intValue();
-                        }
-                    }
-                }
-            }
-            double score = sum / (double) CDAGameConstants.AUCTION_REPETITIONS;
+        for (GameScores.Agent agent : gameScores.getAgents()) {
             Element agentElem = new Element("agent");
-            agentElem.addContent(new Element("ID").setText(String.valueOf(aID)));
-            String userName = Main.getAgent(String.valueOf(aID));
-            agentElem.addContent(new Element("userName").setText(userName));
-            agentElem.addContent(new Element("strategy").setText(Main.getStrategy(userName)));
+            agentElem.addContent(new Element("ID").setText(String.valueOf(agent.agentID)));
+            agentElem.addContent(new Element("userName").setText(agent.userName));
+            agentElem.addContent(new Element("strategy").setText(Main.getStrategy(agent.userName)));
             Element agentValuesElem = new Element("values");
             agentElem.addContent(agentValuesElem);
-            for (int value : agentValues.get(aID)) {
+            for (int value : agent.values) {
                 agentValuesElem.addContent(new Element("value").setText(String.valueOf(value)));
             }
-            agentElem.addContent(new Element("score").setText(String.valueOf(score)));
+            agentElem.addContent(new Element("score").setText(String.valueOf(agent.score)));
             scores.addContent(agentElem);
         }
 
@@ -161,38 +276,10 @@ public class CDAGameScorer extends Scorer {
             for (Object transTupleO : buyListEl.getChildren("transTuple")) {
                 try {
                     Element transTupleEl = (Element) transTupleO;
-                    Long thisTransactionTimestamp = Long.valueOf(transTupleEl.getChildText("timestamp"));
-
-                    // Find the auction repetition to which this transaction belongs
-                    int repetition = -1;
-                    for (int thisRepetition = 0; thisRepetition < CDAGameConstants.AUCTION_REPETITIONS; thisRepetition++) {
-                        if (thisTransactionTimestamp.longValue() > m_startTime.longValue() + thisRepetition * CDAGameConstants.AUCTION_LEN && thisTransactionTimestamp.longValue() <= m_startTime.longValue() + (thisRepetition + 1) * CDAGameConstants.AUCTION_LEN) {
-                            repetition = thisRepetition;
-                            break;
-                        }
-                    }
-                    if (repetition == -1) {
-                        Main.printLog("Wat? Auction: " + m_startTime.longValue() + " - " + (m_startTime.longValue() + CDAGameConstants.AUCTION_REPETITIONS * CDAGameConstants.AUCTION_LEN) + ", Transaction: " + thisTransactionTimestamp.longValue());
-                        Main.printLog("Before? " + (thisTransactionTimestamp.longValue() < m_startTime.longValue()));
-                        Main.printLog("After? " + (thisTransactionTimestamp.longValue() > m_startTime.longValue() + CDAGameConstants.AUCTION_REPETITIONS * CDAGameConstants.AUCTION_LEN));
-                        if (thisTransactionTimestamp.longValue() < m_startTime.longValue()) {
-                            repetition = 0;
-                        } else {
-                            repetition = CDAGameConstants.AUCTION_REPETITIONS - 1;
-                        }
-                    }
-
-                    // Create the auction score if it does not exist
-                    if (repetitions[repetition] == null) {
-                        repetitions[repetition] = new CDAGameAuctionScore();
-                    }
-
-                    CDAGameAuctionScoreTransaction t = new CDAGameAuctionScoreTransaction();
-                    t.transactionTimestamp = thisTransactionTimestamp;
-                    t.sellerID = Integer.valueOf(transTupleEl.getChildText("sellerID"));
-                    t.buyerID = Integer.valueOf(transTupleEl.getChildText("buyerID"));
-                    t.transactionPrice = new Price(transTupleEl.getChildText("price"));
-                    repetitions[repetition].transactions.add(t);
+                    addTransaction(Long.parseLong(transTupleEl.getChildText("timestamp")),
+                            Integer.parseInt(transTupleEl.getChildText("buyerID")),
+                            Integer.parseInt(transTupleEl.getChildText("sellerID")),
+                            new Price(transTupleEl.getChildText("price")));
                 } catch (Exception e) {
                 }
             }
@@ -209,20 +296,15 @@ public class CDAGameScorer extends Scorer {
 //        } catch (Exception e) {
 //        }
         Integer agentID = Integer.valueOf(em.getChildText("agent"));
-        agentValues.put(agentID, new LinkedList<Integer>());
+        List<Integer> values = new LinkedList<Integer>();
         for (Object auctionO : em.getChild("auctionValues").getChildren("auction")) {
             Element auctionE = (Element) auctionO;
             for (Object valueO : auctionE.getChildren("value")) {
                 Element valueE = (Element) valueO;
-                agentValues.get(agentID).add(Integer.valueOf(valueE.getText()));
+                values.add(Integer.valueOf(valueE.getText()));
             }
         }
-        // Sort agent values
-        Collections.sort(agentValues.get(agentID));
-        // Reverse if it's a buyer
-        if (Main.isBuyer(Main.getAgent(String.valueOf(agentID)))) {
-            Collections.reverse(agentValues.get(agentID));
-        }
+        logValues.put(agentID, values);
         return 0;
     }
 
@@ -230,4 +312,26 @@ public class CDAGameScorer extends Scorer {
     protected int readTrans(Element em) {
         return 0;
     }
+
+    /**
+     * An agent's sorted values and the surplus it has made so far.
+     */
+    private static class AgentScore {
+
+        public final boolean buyer;
+        public final int[] values;
+        // Surplus over every repetition (always whole, so summing as a long is exact)
+        public long surplus = 0;
+        // Units traded in the repetition being scored, and in every repetition
+        public int traded = 0, trades = 0;
+
+        public AgentScore(boolean buyer, List<Integer> values) {
+            this.buyer = buyer;
+            this.values = new int[values.size()];
+            int i = 0;
+            for (int value : values) {
+                this.values[i++] = value;
+            }
+        }
+    }
 }
@@ -0,0 +1,102 @@
+package sim.cda;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SplittableRandom;
+
+/**
+ * Surplus of the competitive equilibrium of a game: what the market would
+ * make in a repetition if every unit that can trade at a profit did, whatever
+ * the strategies. It follows the values alone, which makes it a control
+ * variate for the strategies' payoffs.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class CompetitiveEquilibrium {
+
+    // Name of the sample feature holding the surplus
+    public static final String FEATURE = "equilibrium_surplus";
+    // Number of games drawn to find the expected surplus
+    public static final int DRAWS = 100000;
+
+    /**
+     * @return surplus per repetition at the competitive equilibrium of the
+     * given buyer and seller values
+     */
+    public static long surplus(Collection<int[]> buyers, Collection<int[]> sellers) {
+        // Count the units at each value, values are few
+        int range = CDAGameConstants.V_MAX - CDAGameConstants.V_MIN + 1;
+        int[] demand = new int[range], supply = new int[range];
+        for (int[] values : buyers) {
+            count(demand, values);
+        }
+        for (int[] values : sellers) {
+            count(supply, values);
+        }
+        return surplus(demand, supply);
+    }
+
+    /**
+     * @return expected surplus per repetition of a game with the given number
+     * of buyers and sellers, their values drawn uniformly (estimated from a
+     * fixed set of draws, so it is the same on every run)
+     */
+    public static double expectedSurplus(int buyers, int sellers) {
+        int range = CDAGameConstants.V_MAX - CDAGameConstants.V_MIN + 1;
+        int[] demand = new int[range], supply = new int[range];
+        SplittableRandom random = new SplittableRandom(0);
+        double total = 0;
+        for (int d = 0; d < DRAWS; d++) {
+            Arrays.fill(demand, 0);
+            Arrays.fill(supply, 0);
+            for (int i = 0; i < buyers * CDAGameConstants.MAX_TRADES; i++) {
+                demand[random.nextInt(range)]++;
+            }
+            for (int i = 0; i < sellers * CDAGameConstants.MAX_TRADES; i++) {
+                supply[random.nextInt(range)]++;
+            }
+            total += surplus(demand, supply);
+        }
+        return total / DRAWS;
+    }
+
+    private static void count(int[] units, int[] values) {
+        for (int value : values) {
+            units[value - CDAGameConstants.V_MIN]++;
+        }
+    }
+
+    // Matches the highest buyer units with the lowest seller units while it pays
+    private static long surplus(int[] demand, int[] supply) {
+        int b = demand.length - 1, s = 0;
+        int buyerUnits = 0, sellerUnits = 0;
+        long surplus = 0;
+        while (true) {
+            while (b >= 0 && buyerUnits == 0) {
+                buyerUnits = demand[b];
+                if (buyerUnits == 0) {
+                    b--;
+                }
+            }
+            while (s < supply.length && sellerUnits == 0) {
+                sellerUnits = supply[s];
+                if (sellerUnits == 0) {
+                    s++;
+                }
+            }
+            if (b < 0 || s >= supply.length || b <= s) {
+                return surplus;
+            }
+            int units = Math.min(buyerUnits, sellerUnits);
+            surplus += (long) units * (b - s);
+            buyerUnits -= units;
+            sellerUnits -= units;
+            if (buyerUnits == 0) {
+                b--;
+            }
+            if (sellerUnits == 0) {
+                s++;
+            }
+        }
+    }
+}
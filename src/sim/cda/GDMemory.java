@@ -0,0 +1,220 @@
+package sim.cda;
+
+import java.util.Arrays;
+
+/**
+ * The market history remembered collectively by a group of GD agents. Bids
+ * are sequence numbers in the market's bid log.
+ *
+ * The remembered bids are also counted by price, so the belief functions for
+ * the whole price range come from one pass of running sums rather than a scan
+ * of the history for every price.
+ *
+ * The finished beliefs are published as an immutable Belief, tagged with
+ * the version of the history they were computed from, so the other agents of
+ * the group can reuse them without recomputing or locking.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class GDMemory {
+
+    // Prices are counted in [V_MIN - 1, V_MAX + 1]; anything outside lands on an end
+    private static final int LOWEST = CDAGameConstants.V_MIN - 1, HIGHEST = CDAGameConstants.V_MAX + 1;
+    // Bids remembered from the current repetition
+    public final PricedDeque history;
+    // Bid stack is ordered from lowest to highest, and ask stack is ordered from highest to lowest
+    public final PricedDeque bidStack, askStack;
+    public final PricedDeque acceptedBids, acceptedAsks;
+    // Working beliefs, indexed by price, filled in from V_MIN to V_MAX
+    public final double[] buyerPr = new double[CDAGameConstants.V_MAX + 1], sellerPr = new double[CDAGameConstants.V_MAX + 1];
+    // Next bid to remember
+    public final BidLog.Cursor bids;
+    public int currentRepetition = -1;
+    // Beliefs last published
+    private volatile Belief belief = null;
+
+    public GDMemory(BidLog bidLog) {
+        bids = bidLog.cursor(0);
+        history = new PricedDeque(bidLog);
+        bidStack = new PricedDeque(bidLog);
+        askStack = new PricedDeque(bidLog);
+        acceptedBids = new PricedDeque(bidLog);
+        acceptedAsks = new PricedDeque(bidLog);
+    }
+
+    /**
+     * @return the published beliefs, if they were computed from the current history
+     */
+    public Belief getBelief(int repetitionIndex, int priorTransactions) {
+        Belief b = belief;
+        if (b != null && b.repetitionIndex == repetitionIndex && b.version == version() && b.priorTransactions == priorTransactions) {
+            return b;
+        }
+        return null;
+    }
+
+    /**
+     * Publishes a copy of the working beliefs.
+     */
+    public Belief publishBelief(int repetitionIndex, int priorTransactions) {
+        belief = new Belief(repetitionIndex, version(), priorTransactions, buyerPr.clone(), sellerPr.clone());
+        return belief;
+    }
+
+    /**
+     * @return count of changes made to the history, stacks and accepted bids
+     */
+    public long version() {
+        return history.modifications + bidStack.modifications + askStack.modifications + acceptedBids.modifications + acceptedAsks.modifications;
+    }
+
+    public void clear() {
+        history.clear();
+        bidStack.clear();
+        askStack.clear();
+        acceptedBids.clear();
+        acceptedAsks.clear();
+    }
+
+    /**
+     * Fills in buyerPr and sellerPr from V_MIN to V_MAX with the belief that a
+     * bid (ask) at each price would be accepted. NaN where there is no
+     * evidence either way.
+     */
+    public void computePr(BidLog bidLog) {
+        int outstandingBid = bidStack.isEmpty() ? Integer.MIN_VALUE : bidLog.price(bidStack.getLast());
+        int outstandingAsk = askStack.isEmpty() ? Integer.MAX_VALUE : bidLog.price(askStack.getLast());
+        // Buyer: TBLp (transaction-resulting bids at p or lower) and ALp (asks at p or lower) grow with p
+        double TBLp = 0, ALp = 0;
+        for (int p = LOWEST; p < CDAGameConstants.V_MIN; p++) {
+            TBLp += acceptedBids.count(true, p);
+            ALp += history.count(false, p);
+        }
+        // RBGp : unmatched bids at price p or greater, shrinks with p
+        double RBGp = bidStack.count(true);
+        for (int p = LOWEST; p < CDAGameConstants.V_MIN; p++) {
+            RBGp -= bidStack.count(true, p);
+        }
+        for (int p = CDAGameConstants.V_MIN; p <= CDAGameConstants.V_MAX; p++) {
+            TBLp += acceptedBids.count(true, p);
+            ALp += history.count(false, p);
+            // Check for obvious: doesn't beat the current outstanding bid
+            buyerPr[p] = p < outstandingBid ? 0 : (TBLp + ALp) / (TBLp + ALp + RBGp);
+            RBGp -= bidStack.count(true, p);
+        }
+        // Seller: TAGp (transaction-resulting asks at p or higher) and BGp (bids at p or higher) grow as p falls
+        double TAGp = 0, BGp = 0;
+        for (int p = HIGHEST; p > CDAGameConstants.V_MAX; p--) {
+            TAGp += acceptedAsks.count(false, p);
+            BGp += history.count(true, p);
+        }
+        // RALp : unmatched asks at price p or lower, shrinks as p falls
+        double RALp = askStack.count(false);
+        for (int p = HIGHEST; p > CDAGameConstants.V_MAX; p--) {
+            RALp -= askStack.count(false, p);
+        }
+        for (int p = CDAGameConstants.V_MAX; p >= CDAGameConstants.V_MIN; p--) {
+            TAGp += acceptedAsks.count(false, p);
+            BGp += history.count(true, p);
+            // Check for obvious: doesn't beat the current outstanding ask
+            sellerPr[p] = p > outstandingAsk ? 0 : (TAGp + BGp) / (TAGp + BGp + RALp);
+            RALp -= askStack.count(false, p);
+        }
+    }
+
+    /**
+     * Beliefs computed from one market state: the repetition, the version of
+     * the history, and the number of transactions in the previous repetition
+     * (for MGD). The arrays are never written after publication.
+     */
+    public static class Belief {
+
+        public final int repetitionIndex, priorTransactions;
+        public final long version;
+        public final double[] buyerPr, sellerPr;
+
+        public Belief(int repetitionIndex, long version, int priorTransactions, double[] buyerPr, double[] sellerPr) {
+            this.repetitionIndex = repetitionIndex;
+            this.version = version;
+            this.priorTransactions = priorTransactions;
+            this.buyerPr = buyerPr;
+            this.sellerPr = sellerPr;
+        }
+
+        public double[] getPr(boolean buyer) {
+            return buyer ? buyerPr : sellerPr;
+        }
+    }
+
+    /**
+     * A deque of bids that keeps count of its bids and asks at each price.
+     */
+    public static class PricedDeque extends IntDeque {
+
+        private final BidLog bidLog;
+        private final int[] buys = new int[HIGHEST - LOWEST + 1], asks = new int[HIGHEST - LOWEST + 1];
+        private int buyCount = 0, askCount = 0;
+        // Every change counts, so the sum over several deques only grows
+        private long modifications = 0;
+
+        public PricedDeque(BidLog bidLog) {
+            this.bidLog = bidLog;
+        }
+
+        /**
+         * @return number of bids (or asks)
+         */
+        public int count(boolean buy) {
+            return buy ? buyCount : askCount;
+        }
+
+        /**
+         * @return number of bids (or asks) at the price
+         */
+        public int count(boolean buy, int price) {
+            return (buy ? buys : asks)[price - LOWEST];
+        }
+
+        @Override
+        public void addLast(int bid) {
+            super.addLast(bid);
+            tally(bid, 1);
+        }
+
+        @Override
+        public int removeFirst() {
+            int bid = super.removeFirst();
+            tally(bid, -1);
+            return bid;
+        }
+
+        @Override
+        public int removeLast() {
+            int bid = super.removeLast();
+            tally(bid, -1);
+            return bid;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            Arrays.fill(buys, 0);
+            Arrays.fill(asks, 0);
+            buyCount = 0;
+            askCount = 0;
+            modifications++;
+        }
+
+        private void tally(int bid, int delta) {
+            modifications++;
+            int price = Math.min(HIGHEST, Math.max(LOWEST, bidLog.price(bid)));
+            if (bidLog.isBuy(bid)) {
+                buys[price - LOWEST] += delta;
+                buyCount += delta;
+            } else {
+                asks[price - LOWEST] += delta;
+                askCount += delta;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package sim.cda;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Solved GDX bidding problems, shared by the GDX agents of one market. Two
+ * agents on the same side bidding from the same published beliefs, with the
+ * same remaining unit values and the same number of bids left, get the same
+ * bid, so the problem only needs solving once. Beliefs are identified by the
+ * version of the GDX memory they came from rather than compared price by
+ * price. Least recently used policies are evicted first, once the cache holds
+ * more than its size in bytes.
+ *
+ * Such repeats are rare in the standard game, so the cache is off unless the
+ * simulation spec gives it a size.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class GDXPolicyCache {
+
+    // Simulation spec parameter holding the most bytes the cache keeps (0, the default, turns it off)
+    public static final String PARAM_BYTES = "gdx_cache_bytes";
+    // Rough bytes held by an entry besides its unit values: map entry, key, policy
+    private static final int ENTRY_BYTES = 128;
+    private final long maxBytes;
+    private final Map<Key, Policy> policies = new LinkedHashMap<Key, Policy>(16, 0.75f, true);
+    private long bytes = 0, hits = 0, misses = 0;
+
+    public GDXPolicyCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a cache of the size the simulation spec asks for (null if the
+     * cache is off)
+     */
+    public static GDXPolicyCache create(Map<String, String> params) {
+        long maxBytes = Long.parseLong(Utils.getParam(params, PARAM_BYTES, "0"));
+        if (maxBytes < 0) {
+            throw new RuntimeException("GDX cache size cannot be negative: " + maxBytes);
+        }
+        return maxBytes == 0 ? null : new GDXPolicyCache(maxBytes);
+    }
+
+    /**
+     * @return the solved policy, or null
+     */
+    public synchronized Policy get(Key key) {
+        Policy policy = policies.get(key);
+        if (policy == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return policy;
+    }
+
+    public synchronized void put(Key key, Policy policy) {
+        if (policies.put(key, policy) == null) {
+            bytes += retainedBytes(key);
+        }
+        Iterator<Key> eldest = policies.keySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= retainedBytes(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return approximate bytes held
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long retainedBytes(Key key) {
+        return ENTRY_BYTES + 4L * key.unitValues.length;
+    }
+
+    /**
+     * A GDX bidding problem.
+     */
+    public static class Key {
+
+        // Identify the beliefs without holding on to them
+        private final int repetitionIndex, priorTransactions;
+        private final long version;
+        private final boolean buyer;
+        private final int[] unitValues;
+        private final int remainingBids, hash;
+
+        /**
+         * @param unitValues copied from 1 to tradesLeft
+         */
+        public Key(GDMemory.Belief belief, boolean buyer, int[] unitValues, int tradesLeft, int remainingBids) {
+            repetitionIndex = belief.repetitionIndex;
+            priorTransactions = belief.priorTransactions;
+            version = belief.version;
+            this.buyer = buyer;
+            this.unitValues = Arrays.copyOfRange(unitValues, 1, tradesLeft + 1);
+            this.remainingBids = remainingBids;
+            int h = repetitionIndex;
+            h = 31 * h + (int) (version ^ (version >>> 32));
+            h = 31 * h + priorTransactions;
+            h = 31 * h + Arrays.hashCode(this.unitValues);
+            h = 31 * h + remainingBids;
+            hash = 31 * h + (buyer ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && buyer == k.buyer && remainingBids == k.remainingBids
+                    && version == k.version && repetitionIndex == k.repetitionIndex && priorTransactions == k.priorTransactions
+                    && Arrays.equals(unitValues, k.unitValues);
+        }
+    }
+
+    /**
+     * The solution to a GDX bidding problem.
+     */
+    public static class Policy {
+
+        public final int bid;
+        public final double expectedValue;
+
+        public Policy(int bid, double expectedValue) {
+            this.bid = bid;
+            this.expectedValue = expectedValue;
+        }
+    }
+}
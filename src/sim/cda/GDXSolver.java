@@ -0,0 +1,264 @@
+package sim.cda;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Solves the GDX bidding problem: with some trades and some bids left, which
+ * price maximizes the discounted expected surplus? Bottom-up dynamic program
+ * over the number of bids left, reusing its tables from one bid to the next.
+ *
+ * Given a fork/join pool, the price maximizations of each layer (one number
+ * of bids left, every number of trades left) are split across the pool, one
+ * layer after the other. Layers too small to gain from it stay sequential,
+ * which at the default threshold is every layer of the standard game (at
+ * most MAX_TRADES trades and V_MAX - V_MIN + 1 prices); lower the threshold to
+ * split them anyway.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class GDXSolver {
+
+    // Simulation spec parameter choosing the solver ("sequential", default, or "parallel")
+    public static final String PARAM_SOLVER = "gdx_solver";
+    // Simulation spec parameter holding the fewest price evaluations in a layer worth splitting
+    public static final String PARAM_PARALLEL_THRESHOLD = "gdx_parallel_threshold";
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 16384;
+    // Fewest prices given to a single task
+    public static final int DEFAULT_MIN_PRICES_PER_TASK = 512;
+    private static ForkJoinPool sharedPool = null;
+    private final double gamma;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold, minPricesPerTask;
+    // V[tradesLeft][remainingBids]: expected value of bidding optimally from here on
+    private double[][] V = new double[CDAGameConstants.MAX_TRADES + 1][0];
+    private int[] bestPs = new int[CDAGameConstants.MAX_TRADES + 1];
+    private double expectedValue = 0;
+
+    public GDXSolver(double gamma) {
+        this(gamma, null, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool where to split layers (null to always solve sequentially)
+     */
+    public GDXSolver(double gamma, ForkJoinPool pool, int parallelThreshold) {
+        this(gamma, pool, parallelThreshold, DEFAULT_MIN_PRICES_PER_TASK);
+    }
+
+    /**
+     * @param minPricesPerTask fewest prices a task maximizes over before
+     * splitting them with another
+     */
+    public GDXSolver(double gamma, ForkJoinPool pool, int parallelThreshold, int minPricesPerTask) {
+        this.gamma = gamma;
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+        this.minPricesPerTask = minPricesPerTask;
+    }
+
+    /**
+     * @return the solver chosen by the simulation spec
+     */
+    public static GDXSolver create(Map<String, String> params, double gamma) {
+        String solver = Utils.getParam(params, PARAM_SOLVER, "sequential");
+        int parallelThreshold = Integer.parseInt(Utils.getParam(params, PARAM_PARALLEL_THRESHOLD, String.valueOf(DEFAULT_PARALLEL_THRESHOLD)));
+        if (solver.equalsIgnoreCase("parallel")) {
+            return new GDXSolver(gamma, getSharedPool(), parallelThreshold);
+        } else if (!solver.equalsIgnoreCase("sequential")) {
+            throw new RuntimeException("Unknown GDX solver: " + solver);
+        }
+        return new GDXSolver(gamma);
+    }
+
+    /**
+     * @return the pool shared by the parallel solvers of every simulation
+     */
+    public static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool();
+        }
+        return sharedPool;
+    }
+
+    /**
+     * @param pr belief that a bid (ask) at each price is accepted, indexed by price
+     * @param unitValues value of the unit traded with each number of trades left, indexed by trades left
+     * @param currentValue value of the unit being traded now, which bounds the prices tried
+     * @return the price to bid
+     */
+    public int solve(double[] pr, int[] unitValues, int currentValue, boolean buyer, int tradesLeft, int remainingBids) {
+        int defaultP = buyer ? CDAGameConstants.V_MIN : CDAGameConstants.V_MAX;
+        if (tradesLeft <= 0 || remainingBids <= 0) {
+            expectedValue = 0;
+            return defaultP;
+        }
+        ensureCapacity(tradesLeft, remainingBids);
+        // With no trades or no bids left, nothing more to gain
+        for (int k = 0; k <= tradesLeft; k++) {
+            V[k][0] = 0;
+        }
+        int prices = buyer ? currentValue - CDAGameConstants.V_MIN + 1 : CDAGameConstants.V_MAX - currentValue + 1;
+        boolean parallel = pool != null && (long) tradesLeft * prices >= parallelThreshold;
+        for (int n = 1; n <= remainingBids; n++) {
+            V[0][n] = 0;
+            if (parallel) {
+                pool.invoke(new LayerTask(pr, unitValues, currentValue, buyer, n, 1, tradesLeft, prices));
+            } else {
+                for (int k = 1; k <= tradesLeft; k++) {
+                    bestPs[k] = argMaxP(pr, unitValues[k], currentValue, buyer, V[k - 1][n - 1], V[k][n - 1], 0, prices).p;
+                }
+            }
+            for (int k = 1; k <= tradesLeft; k++) {
+                V[k][n] = Vp(pr, unitValues[k], buyer, V[k - 1][n - 1], V[k][n - 1], bestPs[k] < 0 ? defaultP : bestPs[k]);
+            }
+        }
+        expectedValue = V[tradesLeft][remainingBids];
+        return bestPs[tradesLeft] < 0 ? defaultP : bestPs[tradesLeft];
+    }
+
+    /**
+     * @return expected value of the last bid solved for
+     */
+    public double getExpectedValue() {
+        return expectedValue;
+    }
+
+    /**
+     * Maximizes over the prices tried from the (from)th to just before the
+     * (to)th, starting at the current value and moving away from it. Only
+     * strictly positive expected values count, ties going to the price tried
+     * first.
+     */
+    private Best argMaxP(double[] pr, int value, int currentValue, boolean buyer, double vTrade, double vNoTrade, int from, int to) {
+        double tradeValue = gamma * vTrade, bestVp = 0;
+        int bestP = -1;
+        if (buyer) {
+            for (int p = currentValue - from; p > currentValue - to; p--) {
+                double thisVp = pr[p] * ((double) (value - p) + tradeValue) + (1 - pr[p]) * gamma * vNoTrade;
+                if (thisVp > bestVp) {
+                    bestP = p;
+                    bestVp = thisVp;
+                }
+            }
+        } else {
+            for (int p = currentValue + from; p < currentValue + to; p++) {
+                double thisVp = pr[p] * ((double) (p - value) + tradeValue) + (1 - pr[p]) * gamma * vNoTrade;
+                if (thisVp > bestVp) {
+                    bestP = p;
+                    bestVp = thisVp;
+                }
+            }
+        }
+        return new Best(bestP, bestVp);
+    }
+
+    private double Vp(double[] pr, int value, boolean buyer, double vTrade, double vNoTrade, int p) {
+        double s = buyer ? value - p : p - value;
+        return pr[p] * (s + gamma * vTrade) + (1 - pr[p]) * gamma * vNoTrade;
+    }
+
+    private void ensureCapacity(int tradesLeft, int remainingBids) {
+        if (tradesLeft >= V.length) {
+            double[][] grown = new double[tradesLeft + 1][];
+            System.arraycopy(V, 0, grown, 0, V.length);
+            for (int k = V.length; k < grown.length; k++) {
+                grown[k] = new double[0];
+            }
+            V = grown;
+            bestPs = new int[tradesLeft + 1];
+        }
+        for (int k = 0; k <= tradesLeft; k++) {
+            if (remainingBids >= V[k].length) {
+                V[k] = new double[Math.max(remainingBids + 1, V[k].length * 2)];
+            }
+        }
+    }
+
+    /**
+     * Best price found in a range (-1 for none).
+     */
+    private static class Best {
+
+        public final int p;
+        public final double vp;
+
+        public Best(int p, double vp) {
+            this.p = p;
+            this.vp = vp;
+        }
+    }
+
+    /**
+     * Finds the best price for each number of trades left in [fromK, toK] of one layer.
+     */
+    private class LayerTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final double[] pr;
+        private final int[] unitValues;
+        private final int currentValue, n, fromK, toK, prices;
+        private final boolean buyer;
+
+        public LayerTask(double[] pr, int[] unitValues, int currentValue, boolean buyer, int n, int fromK, int toK, int prices) {
+            this.pr = pr;
+            this.unitValues = unitValues;
+            this.currentValue = currentValue;
+            this.buyer = buyer;
+            this.n = n;
+            this.fromK = fromK;
+            this.toK = toK;
+            this.prices = prices;
+        }
+
+        @Override
+        protected void compute() {
+            if (fromK < toK) {
+                int mid = (fromK + toK) >>> 1;
+                invokeAll(new LayerTask(pr, unitValues, currentValue, buyer, n, fromK, mid, prices),
+                        new LayerTask(pr, unitValues, currentValue, buyer, n, mid + 1, toK, prices));
+            } else {
+                bestPs[fromK] = new PriceTask(pr, unitValues[fromK], currentValue, buyer, V[fromK - 1][n - 1], V[fromK][n - 1], 0, prices).compute().p;
+            }
+        }
+    }
+
+    /**
+     * Finds the best price in a range for one number of trades left.
+     */
+    private class PriceTask extends RecursiveTask<Best> {
+
+        private static final long serialVersionUID = 1L;
+        private final double[] pr;
+        private final int value, currentValue, from, to;
+        private final boolean buyer;
+        private final double vTrade, vNoTrade;
+
+        public PriceTask(double[] pr, int value, int currentValue, boolean buyer, double vTrade, double vNoTrade, int from, int to) {
+            this.pr = pr;
+            this.value = value;
+            this.currentValue = currentValue;
+            this.buyer = buyer;
+            this.vTrade = vTrade;
+            this.vNoTrade = vNoTrade;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Best compute() {
+            if (to - from < 2 * minPricesPerTask) {
+                return argMaxP(pr, value, currentValue, buyer, vTrade, vNoTrade, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            PriceTask later = new PriceTask(pr, value, currentValue, buyer, vTrade, vNoTrade, mid, to);
+            later.fork();
+            Best first = new PriceTask(pr, value, currentValue, buyer, vTrade, vNoTrade, from, mid).compute();
+            Best second = later.join();
+            // Ties go to the price tried first
+            return second.vp > first.vp ? second : first;
+        }
+    }
+}
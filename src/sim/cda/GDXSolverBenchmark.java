@@ -0,0 +1,208 @@
+package sim.cda;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks GDXSolver against the memoized recursion GDX used before it, on
+ * random beliefs and unit values, and times both at the full horizon. The
+ * parallel solver is checked against the sequential one with every layer
+ * split, down to a few prices per task.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class GDXSolverBenchmark {
+
+    public static void main(String[] args) {
+        // Expected inputs: [cases to check] [bids to time] [seed]
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int timed = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        SplittableRandom random = new SplittableRandom(seed);
+
+        // Same bids and expected values, bit for bit
+        GDXSolver solver = new GDXSolver(GDX.GAMMA);
+        GDXSolver parallel = new GDXSolver(GDX.GAMMA, new ForkJoinPool(4), 0, 4);
+        for (int c = 0; c < cases; c++) {
+            Case test = new Case(random, 1 + random.nextInt(CDAGameConstants.MAX_TRADES), 1 + random.nextInt(160));
+            int bid = solver.solve(test.pr, test.unitValues, test.currentValue, test.buyer, test.tradesLeft, test.remainingBids);
+            Recursion recursion = new Recursion(test);
+            int expectedBid = recursion.argMaxP(test.tradesLeft, test.remainingBids);
+            double expectedValue = recursion.Vp(test.tradesLeft, test.remainingBids, expectedBid);
+            if (bid != expectedBid || Double.doubleToLongBits(solver.getExpectedValue()) != Double.doubleToLongBits(expectedValue)) {
+                throw new RuntimeException("Case " + c + " differs: bid " + bid + " (expected " + expectedBid + "), value " + solver.getExpectedValue() + " (expected " + expectedValue + ")");
+            }
+            int parallelBid = parallel.solve(test.pr, test.unitValues, test.currentValue, test.buyer, test.tradesLeft, test.remainingBids);
+            if (parallelBid != bid || Double.doubleToLongBits(parallel.getExpectedValue()) != Double.doubleToLongBits(expectedValue)) {
+                throw new RuntimeException("Case " + c + " differs in parallel: bid " + parallelBid + " (expected " + bid + "), value " + parallel.getExpectedValue() + " (expected " + expectedValue + ")");
+            }
+        }
+        System.out.println("Checked " + cases + " cases against the recursion, sequentially and in parallel");
+
+        // Cost per bid at the full horizon
+        Case[] full = new Case[timed];
+        for (int i = 0; i < timed; i++) {
+            full[i] = new Case(random, CDAGameConstants.MAX_TRADES, 160);
+        }
+        long start = System.nanoTime();
+        for (Case test : full) {
+            new Recursion(test).argMaxP(test.tradesLeft, test.remainingBids);
+        }
+        double recursionMs = (System.nanoTime() - start) / 1e6 / timed;
+        // Warm up, then time the solver
+        for (Case test : full) {
+            solver.solve(test.pr, test.unitValues, test.currentValue, test.buyer, test.tradesLeft, test.remainingBids);
+        }
+        start = System.nanoTime();
+        for (Case test : full) {
+            solver.solve(test.pr, test.unitValues, test.currentValue, test.buyer, test.tradesLeft, test.remainingBids);
+        }
+        double solverMs = (System.nanoTime() - start) / 1e6 / timed;
+        System.out.println("Mean cost per bid (" + CDAGameConstants.MAX_TRADES + " trades, 160 bids): recursion " + recursionMs + " ms, solver " + solverMs + " ms");
+    }
+
+    /**
+     * One bidding problem: a belief, a schedule of unit values and a horizon.
+     */
+    private static class Case {
+
+        public final double[] pr = new double[CDAGameConstants.V_MAX + 1];
+        // Indexed by trades left, as GDX hands them to the solver
+        public final int[] unitValues = new int[CDAGameConstants.MAX_TRADES + 1];
+        public final boolean buyer;
+        public final int tradesLeft, remainingBids, currentValue;
+
+        public Case(SplittableRandom random, int tradesLeft, int remainingBids) {
+            this.buyer = random.nextBoolean();
+            this.tradesLeft = tradesLeft;
+            this.remainingBids = remainingBids;
+            for (int p = CDAGameConstants.V_MIN; p <= CDAGameConstants.V_MAX; p++) {
+                pr[p] = random.nextDouble();
+            }
+            // Buyers are likelier to trade at higher prices, sellers at lower
+            Arrays.sort(pr, CDAGameConstants.V_MIN, CDAGameConstants.V_MAX + 1);
+            if (!buyer) {
+                for (int i = CDAGameConstants.V_MIN, j = CDAGameConstants.V_MAX; i < j; i++, j--) {
+                    double t = pr[i];
+                    pr[i] = pr[j];
+                    pr[j] = t;
+                }
+            }
+            int[] values = new int[CDAGameConstants.MAX_TRADES];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = CDAGameConstants.V_MIN + random.nextInt(CDAGameConstants.V_MAX - CDAGameConstants.V_MIN + 1);
+            }
+            Arrays.sort(values);
+            for (int k = 1; k <= CDAGameConstants.MAX_TRADES; k++) {
+                // Buyers trade their highest values first, sellers their lowest
+                unitValues[k] = buyer ? values[k - 1] : values[CDAGameConstants.MAX_TRADES - k];
+            }
+            currentValue = unitValues[tradesLeft];
+        }
+    }
+
+    /**
+     * The memoized recursion GDX solved its bidding problem with before
+     * GDXSolver, kept as it was.
+     */
+    private static class Recursion {
+
+        private final Case test;
+        private final Map<Integer, Map<Integer, Double>> V = new HashMap<Integer, Map<Integer, Double>>();
+        private final Map<Integer, Map<Integer, Map<Integer, Double>>> Vp = new HashMap<Integer, Map<Integer, Map<Integer, Double>>>();
+        private final Map<Integer, Map<Integer, Integer>> argMaxP = new HashMap<Integer, Map<Integer, Integer>>();
+
+        public Recursion(Case test) {
+            this.test = test;
+        }
+
+        private double V(int tradesLeft, int remainingBids) {
+            if (V.containsKey(tradesLeft) && V.get(tradesLeft).containsKey(remainingBids)) {
+                return V.get(tradesLeft).get(remainingBids);
+            }
+            double v;
+            if (tradesLeft <= 0 || remainingBids <= 0) {
+                v = 0;
+            } else {
+                v = Vp(tradesLeft, remainingBids, argMaxP(tradesLeft, remainingBids));
+                // Save result
+                if (!V.containsKey(tradesLeft)) {
+                    V.put(tradesLeft, new HashMap<Integer, Double>());
+                }
+                V.get(tradesLeft).put(remainingBids, v);
+            }
+            return v;
+        }
+
+        private double s(int tradesLeft, int p) {
+            int v = test.unitValues[tradesLeft];
+            if (test.buyer) {
+                return v - p;
+            } else {
+                return p - v;
+            }
+        }
+
+        public double Vp(int tradesLeft, int remainingBids, int p) {
+            if (Vp.containsKey(tradesLeft) && Vp.get(tradesLeft).containsKey(remainingBids) && Vp.get(tradesLeft).get(remainingBids).containsKey(p)) {
+                return Vp.get(tradesLeft).get(remainingBids).get(p);
+            }
+            double v;
+            if (tradesLeft <= 0 || remainingBids <= 0) {
+                v = 0;
+            } else {
+                v = test.pr[p] * (s(tradesLeft, p) + GDX.GAMMA * V(tradesLeft - 1, remainingBids - 1)) + (1 - test.pr[p]) * GDX.GAMMA * V(tradesLeft, remainingBids - 1);
+            }
+            // Save result
+            if (!Vp.containsKey(tradesLeft)) {
+                Vp.put(tradesLeft, new HashMap<Integer, Map<Integer, Double>>());
+            }
+            if (!Vp.get(tradesLeft).containsKey(remainingBids)) {
+                Vp.get(tradesLeft).put(remainingBids, new HashMap<Integer, Double>());
+            }
+            Vp.get(tradesLeft).get(remainingBids).put(p, v);
+            return v;
+        }
+
+        public int argMaxP(int tradesLeft, int remainingBids) {
+            if (argMaxP.containsKey(tradesLeft) && argMaxP.get(tradesLeft).containsKey(remainingBids)) {
+                return argMaxP.get(tradesLeft).get(remainingBids);
+            }
+            int bestP;
+            if (test.buyer) {
+                bestP = CDAGameConstants.V_MIN;
+            } else {
+                bestP = CDAGameConstants.V_MAX;
+            }
+            if (!(tradesLeft <= 0 || remainingBids <= 0)) {
+                double bestVp = 0;
+                if (test.buyer) {
+                    for (int p = test.currentValue; p >= CDAGameConstants.V_MIN; p--) {
+                        double thisVp = Vp(tradesLeft, remainingBids, p);
+                        if (thisVp > bestVp) {
+                            bestP = p;
+                            bestVp = thisVp;
+                        }
+                    }
+                } else {
+                    for (int p = test.currentValue; p <= CDAGameConstants.V_MAX; p++) {
+                        double thisVp = Vp(tradesLeft, remainingBids, p);
+                        if (thisVp > bestVp) {
+                            bestP = p;
+                            bestVp = thisVp;
+                        }
+                    }
+                }
+            }
+            // Save result
+            if (!argMaxP.containsKey(tradesLeft)) {
+                argMaxP.put(tradesLeft, new HashMap<Integer, Integer>());
+            }
+            argMaxP.get(tradesLeft).put(tradesLeft, bestP);
+            return bestP;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package sim.cda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scores of a game, handed straight from the scorer to the simulation rather
+ * than written to alloc.xml and parsed back.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class GameScores {
+
+    private final List<Agent> agents = new ArrayList<Agent>();
+
+    public void add(Agent agent) {
+        agents.add(agent);
+    }
+
+    /**
+     * @return every agent, in the order the scorer reports them
+     */
+    public List<Agent> getAgents() {
+        return Collections.unmodifiableList(agents);
+    }
+
+    /**
+     * One agent's part in the game.
+     */
+    public static class Agent {
+
+        public final int agentID;
+        public final String userName;
+        // Sorted from the best unit to trade to the worst
+        public final int[] values;
+        // Units traded over every repetition
+        public final int trades;
+        // Average surplus per repetition
+        public final double score;
+
+        public Agent(int agentID, String userName, int[] values, int trades, double score) {
+            this.agentID = agentID;
+            this.userName = userName;
+            this.values = values;
+            this.trades = trades;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package sim.cda;
+
+/**
+ * Growable double-ended queue of primitive ints, backed by a ring buffer.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class IntDeque {
+
+    private int[] elements;
+    private int head = 0, size = 0;
+
+    public IntDeque() {
+        this(16);
+    }
+
+    public IntDeque(int capacity) {
+        elements = new int[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elements[(head + index) % elements.length];
+    }
+
+    public int getFirst() {
+        return get(0);
+    }
+
+    public int getLast() {
+        return get(size - 1);
+    }
+
+    public void addLast(int value) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) % elements.length] = value;
+        size++;
+    }
+
+    public int removeFirst() {
+        int value = getFirst();
+        head = (head + 1) % elements.length;
+        size--;
+        return value;
+    }
+
+    public int removeLast() {
+        int value = getLast();
+        size--;
+        return value;
+    }
+
+    /**
+     * @return index of the first occurrence of the value, or -1
+     */
+    public int indexOf(int value) {
+        for (int i = 0; i < size; i++) {
+            if (elements[(head + i) % elements.length] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        int[] grown = new int[elements.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[(head + i) % elements.length];
+        }
+        elements = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,23 @@
+package sim.cda;
+
+/**
+ * Interpolation of belief functions over the price grid.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class Interpolation {
+
+    /**
+     * Fills in the values strictly between from and to (either may be the
+     * larger) with the cubic through both end points that is flat at each,
+     * f(x) = f(from) + (f(to) - f(from)) (3t^2 - 2t^3), t = (x - from) / (to - from).
+     */
+    public static void hermite(double[] values, int from, int to) {
+        double start = values[from], rise = values[to] - start, span = to - from;
+        int step = to > from ? 1 : -1;
+        for (int x = from + step; x != to; x += step) {
+            double t = (x - from) / span;
+            values[x] = start + rise * t * t * (3 - 2 * t);
+        }
+    }
+}
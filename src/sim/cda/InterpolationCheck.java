@@ -0,0 +1,95 @@
+package sim.cda;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.SplittableRandom;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Checks Interpolation.hermite against the LU solve GD and GDX used before
+ * it, and both against the same cubic evaluated in 34 digit decimal
+ * arithmetic, on random gaps over the price grid.
+ *
+ * Tolerances, against the decimal reference: hermite within HERMITE_TOLERANCE,
+ * the LU solve within LU_TOLERANCE (its x^3 basis cancels badly near V_MAX).
+ * Old and new may differ by more than 1e-9, but never by more than the LU
+ * solve's own error plus HERMITE_TOLERANCE.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class InterpolationCheck {
+
+    public static final double HERMITE_TOLERANCE = 1e-15, LU_TOLERANCE = 1e-8;
+
+    public static void main(String[] args) {
+        // Expected inputs: [gaps to check] [seed]
+        int gaps = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        SplittableRandom random = new SplittableRandom(seed);
+
+        double maxHermiteError = 0, maxLUError = 0, maxDifference = 0;
+        int checked = 0;
+        while (checked < gaps) {
+            // Sellers fill gaps going up the grid, buyers going down
+            int a = random.nextInt(CDAGameConstants.V_MAX + 1), b = random.nextInt(CDAGameConstants.V_MAX + 1);
+            if (Math.abs(a - b) < 2) {
+                continue;
+            }
+            checked++;
+            int from = random.nextBoolean() ? Math.min(a, b) : Math.max(a, b), to = from == a ? b : a;
+            double[] values = new double[CDAGameConstants.V_MAX + 1];
+            values[from] = random.nextDouble();
+            values[to] = random.nextDouble();
+            double[] lu = lu(values, from, to);
+            Interpolation.hermite(values, from, to);
+            int step = to > from ? 1 : -1;
+            for (int x = from + step; x != to; x += step) {
+                double reference = reference(values[from], values[to], from, to, x);
+                double hermiteError = Math.abs(values[x] - reference), luError = Math.abs(lu[x] - reference), difference = Math.abs(values[x] - lu[x]);
+                if (hermiteError > HERMITE_TOLERANCE || luError > LU_TOLERANCE || difference > luError + HERMITE_TOLERANCE) {
+                    throw new RuntimeException("Gap " + from + " to " + to + " differs at " + x + ": hermite " + values[x] + ", LU " + lu[x] + ", reference " + reference);
+                }
+                maxHermiteError = Math.max(maxHermiteError, hermiteError);
+                maxLUError = Math.max(maxLUError, luError);
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        System.out.println("Checked " + gaps + " gaps against the decimal reference: hermite within " + maxHermiteError + " (tolerance " + HERMITE_TOLERANCE + "), LU within " + maxLUError + " (tolerance " + LU_TOLERANCE + ")");
+        System.out.println("Largest difference between hermite and LU: " + maxDifference);
+    }
+
+    /**
+     * @return the gap filled in the way GD and GDX did before hermite
+     */
+    private static double[] lu(double[] values, int from, int to) {
+        int lastNonNaN = Math.min(from, to), nextNonNaN = Math.max(from, to);
+        double ak = lastNonNaN, akpo = nextNonNaN;
+        double[][] left = new double[][]{{ak * ak * ak, ak * ak, ak, 1}, {akpo * akpo * akpo, akpo * akpo, akpo, 1}, {3 * ak * ak, 2 * ak, 1, 0}, {3 * akpo * akpo, 2 * akpo, 1, 0}};
+        RealMatrix coefficients = new Array2DRowRealMatrix(left, false);
+        DecompositionSolver solver = new LUDecomposition(coefficients).getSolver();
+        double[] right = new double[]{values[lastNonNaN], values[nextNonNaN], 0, 0};
+        RealVector constants = new ArrayRealVector(right, false);
+        RealVector interpolation = solver.solve(constants);
+        double[] filled = values.clone();
+        for (int innerP = lastNonNaN + 1; innerP <= nextNonNaN - 1; innerP++) {
+            filled[innerP] = interpolation.getEntry(0) * innerP * innerP * innerP + interpolation.getEntry(1) * innerP * innerP + interpolation.getEntry(2) * innerP + interpolation.getEntry(3);
+        }
+        return filled;
+    }
+
+    /**
+     * @return f(from) + (f(to) - f(from)) (3t^2 - 2t^3) at x, to 34 digits
+     */
+    private static double reference(double fromValue, double toValue, int from, int to, int x) {
+        MathContext mc = MathContext.DECIMAL128;
+        BigDecimal start = new BigDecimal(fromValue), rise = new BigDecimal(toValue).subtract(start, mc);
+        BigDecimal t = new BigDecimal(x - from).divide(new BigDecimal(to - from), mc);
+        BigDecimal shape = t.multiply(t, mc).multiply(new BigDecimal(3).subtract(t.multiply(new BigDecimal(2), mc), mc), mc);
+        return start.add(rise.multiply(shape, mc), mc).doubleValue();
+    }
+}
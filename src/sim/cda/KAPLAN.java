@@ -29,12 +29,23 @@ public class KAPLAN extends CDAGameAgent implements Runnable {
 
     private void initKAPLAN() {
         logID = LOG_ID;
+        initRandom();
+    }
+
+    @Override
+    protected void initRandom() {
         Fs = 0.0625;
-        Fs += (Utils.RANDOM.nextDouble() - 0.5) * Fs;
+        Fs += (random.nextDouble() - 0.5) * Fs;
         Fp = 0.1;
-        Fp += (Utils.RANDOM.nextDouble() - 0.5) * Fp;
+        Fp += (random.nextDouble() - 0.5) * Fp;
         Ft = 0.1;
-        Ft += (Utils.RANDOM.nextDouble() - 0.5) * Ft;
+        Ft += (random.nextDouble() - 0.5) * Ft;
+    }
+
+    @Override
+    protected int getMarketAccess() {
+        // It reads the transactions of the last repetition
+        return MARKET_READ;
     }
 
     @Override
@@ -52,12 +63,12 @@ public class KAPLAN extends CDAGameAgent implements Runnable {
         }
         // Get the min and max priced transactions from last round
         Transaction minPriceTransaction = null, maxPriceTransaction = null;
-        print("TRANSACTIONS SIZE: " + Utils.TRANSACTIONS.size());
-        if (Utils.TRANSACTIONS.containsKey(repetitionIndex)) {
-            print("TRANSACTIONS FOR REP " + repetitionIndex + ": " + Utils.TRANSACTIONS.get(repetitionIndex).size());
+        print("TRANSACTIONS SIZE: " + context.transactions.size());
+        if (context.transactions.containsKey(repetitionIndex)) {
+            print("TRANSACTIONS FOR REP " + repetitionIndex + ": " + context.transactions.get(repetitionIndex).size());
         }
-        if (repetitionIndex > 0 && Utils.TRANSACTIONS.containsKey(repetitionIndex - 1)) {
-            for (Transaction t : Utils.TRANSACTIONS.get(repetitionIndex - 1)) {
+        if (repetitionIndex > 0 && context.transactions.containsKey(repetitionIndex - 1)) {
+            for (Transaction t : context.transactions.get(repetitionIndex - 1)) {
                 if (minPriceTransaction == null || t.price.intValue() < minPriceTransaction.price.intValue()) {
                     minPriceTransaction = t;
                 }
@@ -73,7 +84,7 @@ public class KAPLAN extends CDAGameAgent implements Runnable {
             print("Last round's max transaction price: " + maxPriceTransaction.price.intValue());
         }
         // How much time is remaining in this bid?
-        long timeRemaining = startTime.longValue() + (repetitionIndex + 1) * CDAGameConstants.AUCTION_LEN - CDAGameConstants.AUCTION_BUFFER_LEN - now().longValue();
+        long timeRemaining = getRepetitionEnd(repetitionIndex) - CDAGameConstants.AUCTION_BUFFER_LEN - now().longValue();
         // Calculate bid
         if (isBuyer()) {
             int toBid = CDAGameConstants.V_MIN;
@@ -9,11 +9,9 @@ import java.io.PrintStream;
 import java.io.StringReader;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.ho.yaml.Yaml;
@@ -29,12 +27,11 @@ public class Main {
     public static final Map<String, String> AGENTS = new HashMap<String, String>();
     // Strategy to the number of players playing that strategy
     public static final Map<String, Integer> STRATEGY_PLAYER_INDICES = new HashMap<String, Integer>();
-    // Buyer user names
-    public static final Set<String> BUYERS = new HashSet<String>();
     public static final String HOST = "localhost";
     public static final int AGENT_MANAGER = 7000;
     public static final int GAME_SCHEDULER = 7001;
     public static final int SYSTEM_CACHE = 7002;
+    public static final int AUCTION_SUPERVISOR = 5500;
     public static Map<String, Collection<Object>> SIM_PROFILE = null;
 
     static {
@@ -43,6 +40,7 @@ public class Main {
             String strategy = strategies[s];
             for (int i = 0; i < 16; i++) {
                 AGENTS.put(strategy + (i + 1), String.valueOf(s * 20 + i + 11));
+                AGENTS.put(String.valueOf(s * 20 + i + 11), strategy + (i + 1));
             }
             STRATEGY_PLAYER_INDICES.put(strategy, 0);
         }
@@ -70,27 +68,9 @@ public class Main {
     }
 
     public static String getAgent(String nameOrID) {
-        if (!AGENTS.containsKey(nameOrID)) {
-            if (AGENTS.containsValue(nameOrID)) {
-                for (String name : AGENTS.keySet()) {
-                    String id = AGENTS.get(name);
-                    if (id.equals(nameOrID)) {
-                        AGENTS.put(id, name);
-                        return name;
-                    }
-                }
-            }
-        }
         return AGENTS.get(nameOrID);
     }
 
-    public static boolean isBuyer(String agent) {
-        if (SIM_PROFILE == null) {
-            return false;
-        }
-        return BUYERS.contains(agent);
-    }
-
     public static String getNextAgentForStrategy(String strategy) {
         int nextStrategyID = STRATEGY_PLAYER_INDICES.get(strategy) + 1;
         STRATEGY_PLAYER_INDICES.put(strategy, nextStrategyID);
@@ -108,16 +88,15 @@ public class Main {
     }
 
     public static void main(String[] args) throws Exception {
-        // Expected inputs: [simulation folder] [number of samples to gather]
-        if (args.length != 2) {
-            throw new RuntimeException("Expected 2 arguments.");
+        // Expected inputs: [simulation folder] [number of samples to gather] [--parallelism N]
+        if (args.length != 2 && !(args.length == 4 && args[2].equals("--parallelism"))) {
+            throw new RuntimeException("Expected 2 arguments, optionally followed by --parallelism N.");
         }
 
         // Gather inputs
         String simDirLoc = args[0];
         int samples = Integer.valueOf(args[1]);
-        Main.printLog("Simulation directory: " + simDirLoc);
-        Main.printLog("Samples: " + samples);
+        int parallelism = args.length == 4 ? Integer.valueOf(args[3]) : 1;
 
         // Open sim dir
         File simDir = new File(simDirLoc);
@@ -130,6 +109,8 @@ public class Main {
         if (logFile.exists() || (!logFile.exists() && logFile.createNewFile())) {
             LOG_PRINTSTREAM = new PrintStream(new FileOutputStream(logFile));
         }
+        Main.printLog("Simulation directory: " + simDirLoc);
+        Main.printLog("Samples: " + samples);
 
         // Dummy check
         if (samples <= 0) {
@@ -184,7 +165,27 @@ public class Main {
         SIM_PROFILE.put("ALL", allStrategies);
 
         // Read parameters
-        Map<String, String> simParams = (Map<String, String>) Yaml.load(paramSpec);
+        final Map<String, String> simParams = (Map<String, String>) Yaml.load(paramSpec);
+
+        // Every sample seed comes from the master seed, so a run can be repeated
+        long masterSeed = Long.parseLong(Utils.getParam(simParams, SampleExecutor.PARAM_SEED, String.valueOf(System.currentTimeMillis())));
+        printLog("Master seed: " + masterSeed);
+        // Values drawn ahead of time, shared with other profiles
+        ValueTable valueTable = ValueTable.getShared(simParams);
+        if (valueTable != null) {
+            if (valueTable.samples < samples) {
+                throw new RuntimeException("Value table has " + valueTable.samples + " samples, not " + samples);
+            }
+            printLog("Value table: " + Utils.getParam(simParams, ValueTable.PARAM_FILE, null) + " (" + valueTable.samples + " samples)");
+        }
+        if (Simulation.isAntithetic(simParams)) {
+            printLog("Playing samples in antithetic pairs" + (samples % 2 == 0 ? "" : ", the last sample is left out of the estimates"));
+        }
+        // Running payoff statistics, and when to stop collecting samples
+        final PayoffStatistics statistics = new PayoffStatistics(simParams);
+        if (statistics.isAdaptive()) {
+            printLog("Stopping once every payoff is known to within " + statistics.getTargetHalfWidth() + ", after " + statistics.getMinSamples() + " to " + samples + " samples");
+        }
 
         // Create the config directory
         File configDir = new File(simDir, "config");
@@ -218,7 +219,7 @@ public class Main {
         }
 
         // Create past games directory
-        File pastGamesDir = new File(simDir, "past_games");
+        final File pastGamesDir = new File(simDir, "past_games");
         if (pastGamesDir.exists()) {
             FileUtils.deleteDirectory(pastGamesDir);
         }
@@ -241,53 +242,53 @@ public class Main {
             throw new RuntimeException("Could not create directory: " + binDir.getAbsolutePath());
         }
 
-        printLog("Starting up the AB3D system manager");
+        // AB3D is only needed when it runs the market
+        final boolean ab3d = !Simulation.isLocalMarket(simParams);
+        StartupCoordinator startup = null;
+        // AB3D runs one game at a time for a fixed set of agent accounts
+        if (ab3d && parallelism > 1) {
+            printLog("AB3D games cannot run side by side, ignoring parallelism: " + parallelism);
+            parallelism = 1;
+        }
+        SampleExecutor executor = new SampleExecutor(parallelism);
+        printLog("Parallelism: " + executor.getParallelism());
+        if (ab3d) {
+            startup = new StartupCoordinator(Long.parseLong(Utils.getParam(simParams, StartupCoordinator.PARAM_TIMEOUT, String.valueOf(StartupCoordinator.DEFAULT_TIMEOUT))));
 
-        // Start up the AB3D System Manager
-        SystemManager.main(new String[]{configFile.getAbsolutePath()});
+            printLog("Starting up the AB3D system manager");
 
-        printLog("Waiting for the AB3D system manager to start");
+            // Start up the AB3D System Manager
+            SystemManager.main(new String[]{configFile.getAbsolutePath()});
 
-        // Wait for the System Manager to start up
-        try {
-            Thread.sleep(10000);
-        } catch (Exception e) {
-            if (e.getMessage() != null) {
-                printLog("There was a problem starting the system manager: " + e.getMessage());
-            }
-        }
+            printLog("Waiting for the AB3D system manager to start");
 
-        printLog("Starting up the AB3D auction supervisor");
+            // Wait for the System Manager to start up
+            startup.waitForPorts("system manager", HOST, AGENT_MANAGER, GAME_SCHEDULER, SYSTEM_CACHE);
 
-        // Start up the AB3D Auction Supervisor
-        Thread auctionSupervisorThread = new Thread() {
+            printLog("Starting up the AB3D auction supervisor");
 
-            @Override
-            public void run() {
-                try {
-                    AuctionSupervisor.main(new String[]{configFile.getAbsolutePath()});
-                } catch (Exception e) {
-                    if (e.getMessage() != null) {
-                        printLog("There was a problem starting the auction supervisor: " + e.getMessage());
-                    } else {
-                        printLog("There was a problem starting the auction supervisor: null");
+            // Start up the AB3D Auction Supervisor
+            Thread auctionSupervisorThread = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        AuctionSupervisor.main(new String[]{configFile.getAbsolutePath()});
+                    } catch (Exception e) {
+                        if (e.getMessage() != null) {
+                            printLog("There was a problem starting the auction supervisor: " + e.getMessage());
+                        } else {
+                            printLog("There was a problem starting the auction supervisor: null");
+                        }
                     }
                 }
-            }
-        };
-        auctionSupervisorThread.start();
+            };
+            auctionSupervisorThread.start();
 
-        printLog("Waiting for the AB3D auction supervisor to start");
+            printLog("Waiting for the AB3D auction supervisor to start");
 
-        // Wait for the Auction Supervisor to start up
-        try {
-            Thread.sleep(10000);
-        } catch (Exception e) {
-            if (e.getMessage() != null) {
-                printLog("Interrupted while starting the auction supervisor: " + e.getMessage());
-            } else {
-                printLog("Interrupted while starting the auction supervisor: null");
-            }
+            // Wait for the Auction Supervisor to start up
+            startup.waitForPorts("auction supervisor", HOST, AUCTION_SUPERVISOR);
         }
 
         try {
@@ -333,7 +334,7 @@ public class Main {
             FileUtils.copyInputStreamToFile(Simulation.class.getResourceAsStream("/sim/cda/ab3d/game/pref_template.xml"), prefTemplateXMLFile);
             String systemAgents = IOUtils.toString(Simulation.class.getResourceAsStream("/sim/cda/ab3d/game/system_agents.xml"));
             StringBuilder agents = new StringBuilder();
-            Map<String, Collection<Object>> profile = new HashMap<String, Collection<Object>>();
+            final Map<String, Collection<Object>> profile = new HashMap<String, Collection<Object>>();
             profile.put("Sellers", new LinkedList<Object>());
             profile.put("Buyers", new LinkedList<Object>());
             if (SIM_PROFILE.containsKey("ALL")) {
@@ -361,7 +362,6 @@ public class Main {
                     for (int i = 0; i < 2; i++) {
                         String agent = getNextAgentForStrategy(strategy);
                         Main.printLog(" " + agent);
-                        BUYERS.add(agent);
                         profile.get("Buyers").add(agent);
                         agents.append("\n\t<agentTuple><id>");
                         agents.append(getAgent(agent));
@@ -375,134 +375,129 @@ public class Main {
                     }
                 }
             }
+            if (valueTable != null && (valueTable.sellers < profile.get("Sellers").size() || valueTable.buyers < profile.get("Buyers").size())) {
+                throw new RuntimeException("Value table has seats for " + valueTable.sellers + " sellers and " + valueTable.buyers + " buyers, not " + profile.get("Sellers").size() + " and " + profile.get("Buyers").size());
+            }
+            if (statistics.isControlVariate()) {
+                double expectedSurplus = CompetitiveEquilibrium.expectedSurplus(profile.get("Buyers").size(), profile.get("Sellers").size());
+                printLog("Expected equilibrium surplus: " + expectedSurplus);
+                statistics.setControlMean(expectedSurplus);
+            }
             File systemAgentsXMLFile = new File(gameDir, "system_agents.xml");
             systemAgentsXMLFile.createNewFile();
             FileUtils.writeStringToFile(systemAgentsXMLFile, systemAgents.replace("[AGENTS]", agents.toString()));
 
-            printLog("Done writing files. Waiting for them to show up.");
+            if (ab3d) {
+                printLog("Done writing files. Waiting for them to show up.");
 
-            // Wait for files to show up
-            Thread.sleep(10000);
+                // Wait for files to show up
+                startup.waitForFiles("game files", gameXMLFile, gameXSLFile, aucIDTemplateFile, auctionsXMLFile, prefTemplateXMLFile, systemAgentsXMLFile);
 
-            printLog("Done waiting for files to show up.");
-            printLog("Game XML file exists? " + gameXMLFile.exists());
-            printLog("Game XSL file exists? " + gameXSLFile.exists());
-            printLog("Auctions ID template file exists? " + aucIDTemplateFile.exists());
-            printLog("Auctions XML file exists? " + auctionsXMLFile.exists());
-            printLog("Pref template XML file exists? " + prefTemplateXMLFile.exists());
-            printLog("System agents XML file exists? " + systemAgentsXMLFile.exists());
+                printLog("Done waiting for files to show up.");
+                printLog("Game XML file exists? " + gameXMLFile.exists());
+                printLog("Game XSL file exists? " + gameXSLFile.exists());
+                printLog("Auctions ID template file exists? " + aucIDTemplateFile.exists());
+                printLog("Auctions XML file exists? " + auctionsXMLFile.exists());
+                printLog("Pref template XML file exists? " + prefTemplateXMLFile.exists());
+                printLog("System agents XML file exists? " + systemAgentsXMLFile.exists());
+                printLog("AB3D started up in " + startup.getElapsed() + " ms");
+            }
 
             // Open stream to payoffs file
-            FileOutputStream payoffOut = new FileOutputStream(payoffFile);
-            Map<String, FileOutputStream> featuresOut = new HashMap<String, FileOutputStream>();
+            final FileOutputStream payoffOut = new FileOutputStream(payoffFile);
+            final Map<String, FileOutputStream> featuresOut = new HashMap<String, FileOutputStream>();
             try {
                 // Collect samples
-                for (int i = 1; i <= samples; i++) {
-                    try {
-                        printLog("");
-                        printLog("Sample: " + i);
-                        printLog("Collecting sample #" + i);
+                executor.run(samples, pastGamesDir, profile, simParams, masterSeed, new SampleExecutor.Listener() {
 
-                        // Run sim
-                        Simulation sim = new Simulation(i, pastGamesDir, profile, simParams);
-                        SimulationResults results = sim.run();
-
-                        printLog("Finished running sample #" + i);
-
-                        // Print results
-                        for (String role : results.payoffs.keySet()) {
-                            Main.printLog(role + ":");
-                            for (String strategy : results.payoffs.get(role).keySet()) {
-                                Main.printLog(" " + strategy + ": " + results.payoffs.get(role).get(strategy));
+                    @Override
+                    public void sampleFinished(int i, SimulationResults results) {
+                        try {
+                            printLog("");
+                            printLog("Sample: " + i);
+                            printLog("Finished running sample #" + i);
+
+                            // Print results
+                            for (String role : results.payoffs.keySet()) {
+                                Main.printLog(role + ":");
+                                for (String strategy : results.payoffs.get(role).keySet()) {
+                                    Main.printLog(" " + strategy + ": " + results.payoffs.get(role).get(strategy));
+                                }
                             }
-                        }
 
-                        // Combine BUYERS and SELLERS roles to ALL
-                        Map<String, Object> allPayoffs = new HashMap<String, Object>();
-                        // Merge in the payoffs to ALL
-                        for (Object o : SIM_PROFILE.get("ALL")) {
-                            String strategy = (String) o;
-                            double score = (((Double) results.payoffs.get("Sellers").get(strategy)).doubleValue() + ((Double) results.payoffs.get("Buyers").get(strategy)).doubleValue()) / 2d;
-                            allPayoffs.put(strategy, (Object) score);
-                        }
-                        // Switch out the ALL role for the buyers and sellers roles
-                        results.payoffs.remove("Buyers");
-                        results.payoffs.remove("Sellers");
-                        results.payoffs.put("ALL", allPayoffs);
-
-                        // Save payoffs
-                        payoffOut.write(("---" + Utils.LINE_BREAK).getBytes());
-                        payoffOut.write(("ALL:" + Utils.LINE_BREAK).getBytes());
-                        for (String strategy : allPayoffs.keySet()) {
-                            payoffOut.write(("  " + strategy + ": " + String.valueOf(((Double) allPayoffs.get(strategy)).doubleValue()) + Utils.LINE_BREAK).getBytes());
-                        }
+                            // Combine BUYERS and SELLERS roles to ALL
+                            Map<String, Object> allPayoffs = new HashMap<String, Object>();
+                            // Merge in the payoffs to ALL
+                            for (Object o : SIM_PROFILE.get("ALL")) {
+                                String strategy = (String) o;
+                                double score = (((Double) results.payoffs.get("Sellers").get(strategy)).doubleValue() + ((Double) results.payoffs.get("Buyers").get(strategy)).doubleValue()) / 2d;
+                                allPayoffs.put(strategy, (Object) score);
+                            }
+                            // The roles and ALL go into the estimates together, or not at all
+                            Object control = results.features.get(CompetitiveEquilibrium.FEATURE);
+                            double controlValue = control == null ? Double.NaN : ((Number) control).doubleValue();
+                            Map<String, Map<String, Object>> estimated = new HashMap<String, Map<String, Object>>(results.payoffs);
+                            estimated.put("ALL", allPayoffs);
+                            statistics.add(i, estimated, controlValue);
+                            // Switch out the ALL role for the buyers and sellers roles
+                            results.payoffs.remove("Buyers");
+                            results.payoffs.remove("Sellers");
+                            results.payoffs.put("ALL", allPayoffs);
+
+                            // Save payoffs
+                            payoffOut.write(("---" + Utils.LINE_BREAK).getBytes());
+                            payoffOut.write(("ALL:" + Utils.LINE_BREAK).getBytes());
+                            for (String strategy : allPayoffs.keySet()) {
+                                payoffOut.write(("  " + strategy + ": " + String.valueOf(((Double) allPayoffs.get(strategy)).doubleValue()) + Utils.LINE_BREAK).getBytes());
+                            }
 
-//                        // Save features
-//                        for (String feature : results.features.keySet()) {
-//                            // New feature
-//                            if (!featuresOut.containsKey(feature)) {
-//                                // Create file
-//                                File featureFile = new File(featuresDir, feature);
-//                                if (!featureFile.exists() && !featureFile.createNewFile()) {
-//                                    throw new RuntimeException("Could not create feature file: " + featureFile.getAbsolutePath());
+//                            // Save features
+//                            for (String feature : results.features.keySet()) {
+//                                // New feature
+//                                if (!featuresOut.containsKey(feature)) {
+//                                    // Create file
+//                                    File featureFile = new File(featuresDir, feature);
+//                                    if (!featureFile.exists() && !featureFile.createNewFile()) {
+//                                        throw new RuntimeException("Could not create feature file: " + featureFile.getAbsolutePath());
+//                                    }
+//                                    // Open stream to file
+//                                    featuresOut.put(feature, new FileOutputStream(featureFile));
 //                                }
-//                                // Open stream to file
-//                                featuresOut.put(feature, new FileOutputStream(featureFile));
+//                                // Save feature data
+//                                featuresOut.get(feature).write(Yaml.dump(results.features.get(feature)).getBytes());
 //                            }
-//                            // Save feature data
-//                            featuresOut.get(feature).write(Yaml.dump(results.features.get(feature)).getBytes());
-//                        }
-                    } catch (Exception e) {
-                        if (e != null) {
-                            printLog("Error collecting sample: " + e.getMessage());
-                        } else {
-                            printLog("Error collecting sample: null");
+                        } catch (Exception e) {
+                            statistics.fail(i);
+                            if (e != null) {
+                                printLog("Error collecting sample: " + e.getMessage());
+                            } else {
+                                printLog("Error collecting sample: null");
+                            }
+                        } finally {
+                            cleanUpSample(pastGamesDir, i);
                         }
-                    } finally {
-                        // Clean up the AB3D logging that shouldn't be happening
-                        try {
-                            File pastGameDir = new File(pastGamesDir, String.valueOf(i));
-                            if (pastGameDir.exists()) {
-                                // AB3D Log
-                                File ab3dLogFile = new File(pastGameDir, "ab3d.log");
-                                if (ab3dLogFile.exists()) {
-                                    // Empty the file
-                                    try {
-                                        FileUtils.write(ab3dLogFile, "");
-                                    } catch (Exception e) {
-                                    }
-                                    // Try to delete it
-                                    FileUtils.deleteQuietly(ab3dLogFile);
-                                }
+                    }
 
-                                // Game transcript
-                                File scGameDataFile = new File(pastGameDir, "sc_game_data.log");
-                                if (scGameDataFile.exists()) {
-                                    // Empty the file
-                                    try {
-                                        FileUtils.write(scGameDataFile, "");
-                                    } catch (Exception e) {
-                                    }
-                                    // Try to delete it
-                                    FileUtils.deleteQuietly(scGameDataFile);
-                                }
+                    @Override
+                    public void sampleFailed(int i, Exception e) {
+                        printLog("");
+                        printLog("Sample: " + i);
+                        printLog("Error collecting sample: " + e.getMessage());
+                        statistics.fail(i);
+                        cleanUpSample(pastGamesDir, i);
+                    }
 
-                                // HTML output
-                                File htmlFile = new File(pastGameDir, "1.html");
-                                if (htmlFile.exists()) {
-                                    // Empty the file
-                                    try {
-                                        FileUtils.write(htmlFile, "");
-                                    } catch (Exception e) {
-                                    }
-                                    // Try to delete it
-                                    FileUtils.deleteQuietly(htmlFile);
-                                }
-                            }
-                        } catch (Exception e) {
-                        }
+                    @Override
+                    public boolean hasEnough() {
+                        // The payoffs written out are those of ALL
+                        return statistics.isPrecise("ALL");
                     }
-                }
+                });
+
+                // Report the estimates
+                printLog("");
+                printLog("Payoff estimates (" + (100 * statistics.getConfidence()) + "% confidence):");
+                statistics.print();
             } finally {
                 Utils.safeClose(payoffOut);
                 for (String feature : featuresOut.keySet()) {
@@ -511,8 +506,10 @@ public class Main {
             }
         } finally {
             // Shut down ab3d
-            Utils.send("<shutdown/>", GAME_SCHEDULER);
-            Utils.send("<shutdown/>", AGENT_MANAGER);
+            if (ab3d) {
+                Utils.send("<shutdown/>", GAME_SCHEDULER);
+                Utils.send("<shutdown/>", AGENT_MANAGER);
+            }
             // Shut down the logger
             if (LOG_PRINTSTREAM != null) {
                 try {
@@ -526,4 +523,49 @@ public class Main {
             }
         }
     }
+
+    private static void cleanUpSample(File pastGamesDir, int i) {
+        // Clean up the AB3D logging that shouldn't be happening
+        try {
+            File pastGameDir = new File(pastGamesDir, String.valueOf(i));
+            if (pastGameDir.exists()) {
+                // AB3D Log
+                File ab3dLogFile = new File(pastGameDir, "ab3d.log");
+                if (ab3dLogFile.exists()) {
+                    // Empty the file
+                    try {
+                        FileUtils.write(ab3dLogFile, "");
+                    } catch (Exception e) {
+                    }
+                    // Try to delete it
+                    FileUtils.deleteQuietly(ab3dLogFile);
+                }
+
+                // Game transcript
+                File scGameDataFile = new File(pastGameDir, "sc_game_data.log");
+                if (scGameDataFile.exists()) {
+                    // Empty the file
+                    try {
+                        FileUtils.write(scGameDataFile, "");
+                    } catch (Exception e) {
+                    }
+                    // Try to delete it
+                    FileUtils.deleteQuietly(scGameDataFile);
+                }
+
+                // HTML output
+                File htmlFile = new File(pastGameDir, "1.html");
+                if (htmlFile.exists()) {
+                    // Empty the file
+                    try {
+                        FileUtils.write(htmlFile, "");
+                    } catch (Exception e) {
+                    }
+                    // Try to delete it
+                    FileUtils.deleteQuietly(htmlFile);
+                }
+            }
+        } catch (Exception e) {
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package sim.cda;
+
+import ab3d.auction.Transaction;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import sim.cda.engine.RepetitionSchedule;
+
+/**
+ * Market information shared by the agents of a single simulation. Every
+ * simulation owns one, so several simulations can run side by side.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class MarketContext {
+
+    // Contexts of the games AB3D is running, by game ID, for the scorers it creates itself
+    private static final Map<String, MarketContext> AB3D_GAMES = new HashMap<String, MarketContext>();
+
+    // Every bid
+    public final BidLog bidLog = new BidLog(CDAGameConstants.AUCTION_REPETITIONS);
+    // Every trade between those bids
+    public final TradeHistory trades = new TradeHistory(CDAGameConstants.AUCTION_REPETITIONS);
+    public final Map<Integer, List<Transaction>> transactions = new HashMap<Integer, List<Transaction>>();
+    // Guards the bid log, trades, transactions and GD memories: writers take
+    // the write lock and strategies reading them the read lock. Only bids to
+    // a market that does not number them go out holding it (a lock rather
+    // than a monitor, so virtual threads blocking while they hold it do not
+    // pin their carrier)
+    public final ReentrantReadWriteLock marketLock = new ReentrantReadWriteLock();
+    // History used collectively by the GD agents, and separately by the GDX agents
+    public final GDMemory gdMemory = new GDMemory(bidLog), gdxMemory = new GDMemory(bidLog);
+    // Policies solved by any GDX agent (null when off)
+    public final GDXPolicyCache gdxPolicies;
+    // When the repetitions of a game not run by AB3D start and end (null for AB3D)
+    public final RepetitionSchedule schedule;
+    // Ends repetitions early (null when it is off)
+    public final QuiescenceDetector quiescence;
+    // Simulation spec parameters
+    public final Map<String, String> params;
+    // Buyer user names
+    private final Set<String> buyers;
+    // Whether the market numbers its bids from 0 in the order it takes them, as the local market does
+    private final boolean numberedBids;
+    // Bids answered ahead of earlier ones, by bid ID, and the ID of the next bid to log
+    private final Map<Integer, AnsweredBid> answeredBids = new HashMap<Integer, AnsweredBid>();
+    private int nextBidID = 0;
+
+    public MarketContext(Collection<Object> buyers) {
+        this(buyers, new HashMap<String, String>(), null, null);
+    }
+
+    public MarketContext(Collection<Object> buyers, Map<String, String> params, RepetitionSchedule schedule, QuiescenceDetector quiescence) {
+        this.params = Collections.unmodifiableMap(params);
+        this.schedule = schedule;
+        this.quiescence = quiescence;
+        this.gdxPolicies = GDXPolicyCache.create(params);
+        Set<String> buyerNames = new HashSet<String>();
+        for (Object o : buyers) {
+            buyerNames.add((String) o);
+        }
+        this.buyers = Collections.unmodifiableSet(buyerNames);
+        numberedBids = Simulation.isLocalMarket(this.params);
+    }
+
+    /**
+     * Hands the context of a game to the scorer AB3D will create for it.
+     */
+    public static void startGame(String gameID, MarketContext context) {
+        synchronized (AB3D_GAMES) {
+            AB3D_GAMES.put(gameID, context);
+        }
+    }
+
+    public static void endGame(String gameID) {
+        synchronized (AB3D_GAMES) {
+            AB3D_GAMES.remove(gameID);
+        }
+    }
+
+    /**
+     * @return the context of an AB3D game, or null if it has none
+     */
+    public static MarketContext getGame(String gameID) {
+        synchronized (AB3D_GAMES) {
+            return AB3D_GAMES.get(gameID);
+        }
+    }
+
+    public boolean isBuyer(String agent) {
+        return buyers.contains(agent);
+    }
+
+    public Set<String> getBuyers() {
+        return buyers;
+    }
+
+    /**
+     * @return whether the market numbers its bids from 0 in the order it takes
+     * them, so that bids can be sent to it outside the write lock
+     */
+    public boolean hasNumberedBids() {
+        return numberedBids;
+    }
+
+    /**
+     * Logs a bid the market has answered. If the market numbers its bids, they
+     * are logged in the order it took them, whatever order the answers come
+     * back in. Otherwise the caller must have held the write lock since
+     * sending the bid, so that the log sees bids in the order the market took
+     * them.
+     */
+    public void addBid(Integer bidID, int repetitionIndex, int price, long timestamp, int agentID, boolean buy) {
+        marketLock.writeLock().lock();
+        try {
+            if (!numberedBids) {
+                logBid(repetitionIndex, price, timestamp, agentID, buy);
+                return;
+            }
+            answeredBids.put(bidID, new AnsweredBid(repetitionIndex, price, timestamp, agentID, buy));
+            while (answeredBids.containsKey(nextBidID)) {
+                AnsweredBid b = answeredBids.remove(nextBidID++);
+                logBid(b.repetitionIndex, b.price, b.timestamp, b.agentID, b.buy);
+            }
+        } finally {
+            marketLock.writeLock().unlock();
+        }
+    }
+
+    // Must be called holding the write lock
+    private void logBid(int repetitionIndex, int price, long timestamp, int agentID, boolean buy) {
+        int transacted = bidLog.transactedCount(repetitionIndex);
+        boolean improving = bidLog.add(repetitionIndex, price, timestamp, agentID, buy);
+        // Did this bid make a trade?
+        if (bidLog.transactedCount(repetitionIndex) > transacted) {
+            int seq = bidLog.size() - 1;
+            trades.add(repetitionIndex, bidLog.tradePrice(seq), Math.max(timestamp, bidLog.timestamp(bidLog.counterpart(seq))));
+        }
+        if (quiescence != null) {
+            quiescence.bid(repetitionIndex, timestamp, improving);
+        }
+    }
+
+    /**
+     * A bid waiting for the bids the market took before it.
+     */
+    private static class AnsweredBid {
+
+        public final int repetitionIndex, price, agentID;
+        public final long timestamp;
+        public final boolean buy;
+
+        public AnsweredBid(int repetitionIndex, int price, long timestamp, int agentID, boolean buy) {
+            this.repetitionIndex = repetitionIndex;
+            this.price = price;
+            this.timestamp = timestamp;
+            this.agentID = agentID;
+            this.buy = buy;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package sim.cda;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * Running mean and variance of the payoff of every strategy in every role,
+ * kept online (Welford) as the samples come in, and the rule for when there
+ * are enough of them. Antithetic pairs, samples 2k - 1 and 2k, count as one
+ * observation, their average; a pair missing either half is left out. With a control variate, the payoffs are also estimated by
+ * regression on the equilibrium surplus of each sample, whose expected value
+ * is known.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class PayoffStatistics {
+
+    // Simulation spec parameter holding the confidence interval half-width to stop at (never stop early if not given)
+    public static final String PARAM_HALF_WIDTH = "ci_half_width";
+    // Simulation spec parameter holding the confidence level of the interval
+    public static final String PARAM_CONFIDENCE = "ci_confidence";
+    // Simulation spec parameter holding the number of samples to take before stopping early
+    public static final String PARAM_MIN_SAMPLES = "min_samples";
+    // Simulation spec parameter adjusting the estimates with the equilibrium surplus: "off" (default) or "on"
+    public static final String PARAM_CONTROL_VARIATE = "control_variate";
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+    public static final int DEFAULT_MIN_SAMPLES = 10;
+    private final double halfWidth, confidence;
+    private final int minSamples;
+    private final boolean antithetic, controlVariate;
+    // Expected value of the control
+    private double controlMean = Double.NaN;
+    // Maps <role, <strategy, running statistics>>
+    private final Map<String, Map<String, Accumulator>> roles = new TreeMap<String, Map<String, Accumulator>>();
+    // Critical values of Student's t, by degrees of freedom
+    private final Map<Integer, Double> critical = new HashMap<Integer, Double>();
+
+    public PayoffStatistics(Map<String, String> params) {
+        halfWidth = Double.parseDouble(Utils.getParam(params, PARAM_HALF_WIDTH, "0"));
+        confidence = Double.parseDouble(Utils.getParam(params, PARAM_CONFIDENCE, String.valueOf(DEFAULT_CONFIDENCE)));
+        minSamples = Integer.parseInt(Utils.getParam(params, PARAM_MIN_SAMPLES, String.valueOf(DEFAULT_MIN_SAMPLES)));
+        if (halfWidth < 0) {
+            throw new RuntimeException("Confidence interval half-width cannot be negative: " + halfWidth);
+        }
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new RuntimeException("Confidence level must be between 0 and 1: " + confidence);
+        }
+        if (minSamples < 2) {
+            throw new RuntimeException("Need at least 2 samples for a confidence interval: " + minSamples);
+        }
+        antithetic = Simulation.isAntithetic(params);
+        String control = Utils.getParam(params, PARAM_CONTROL_VARIATE, "off");
+        if (control.equalsIgnoreCase("on")) {
+            controlVariate = true;
+        } else if (control.equalsIgnoreCase("off")) {
+            controlVariate = false;
+        } else {
+            throw new RuntimeException("Unknown control variate setting: " + control);
+        }
+    }
+
+    public boolean isControlVariate() {
+        return controlVariate;
+    }
+
+    /**
+     * Sets the expected value of the control, which adjusted estimates need.
+     */
+    public void setControlMean(double controlMean) {
+        this.controlMean = controlMean;
+    }
+
+    /**
+     * Adds the payoffs of every role of one sample, <role, <strategy,
+     * payoff>>, along with its control (NaN if there is none). Either every
+     * payoff is added or, if one is not a number, none is.
+     */
+    public void add(int sample, Map<String, Map<String, Object>> payoffs, double control) {
+        // Read every payoff before adding any
+        Map<String, Map<String, Double>> values = new TreeMap<String, Map<String, Double>>();
+        for (String role : payoffs.keySet()) {
+            Map<String, Double> roleValues = new TreeMap<String, Double>();
+            for (String strategy : payoffs.get(role).keySet()) {
+                Object payoff = payoffs.get(role).get(strategy);
+                if (!(payoff instanceof Number)) {
+                    throw new RuntimeException("Payoff of " + strategy + " in role " + role + " is not a number: " + payoff);
+                }
+                roleValues.put(strategy, ((Number) payoff).doubleValue());
+            }
+            values.put(role, roleValues);
+        }
+        for (String role : values.keySet()) {
+            if (!roles.containsKey(role)) {
+                roles.put(role, new TreeMap<String, Accumulator>());
+            }
+            Map<String, Accumulator> strategies = roles.get(role);
+            for (String strategy : values.get(role).keySet()) {
+                if (!strategies.containsKey(strategy)) {
+                    strategies.put(strategy, new Accumulator());
+                }
+                strategies.get(strategy).add(sample, values.get(role).get(strategy), control);
+            }
+        }
+    }
+
+    /**
+     * Forgets a sample that failed, and so the other half of its antithetic
+     * pair.
+     */
+    public void fail(int sample) {
+        for (Map<String, Accumulator> strategies : roles.values()) {
+            for (Accumulator a : strategies.values()) {
+                a.fail(sample);
+            }
+        }
+    }
+
+    /**
+     * @return whether stopping early was asked for at all
+     */
+    public boolean isAdaptive() {
+        return halfWidth > 0;
+    }
+
+    /**
+     * @return whether every strategy of the role has at least the minimum
+     * number of samples and a confidence interval no wider than asked for
+     * (around the adjusted estimate, with a control variate)
+     */
+    public boolean isPrecise(String role) {
+        if (!isAdaptive() || !roles.containsKey(role)) {
+            return false;
+        }
+        for (Accumulator a : roles.get(role).values()) {
+            double width = controlVariate ? getAdjustedHalfWidth(a) : getHalfWidth(a);
+            if (getSamples(a) < minSamples || !(width <= halfWidth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public double getTargetHalfWidth() {
+        return halfWidth;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * @return number of observations, samples or antithetic pairs
+     */
+    public int getCount(String role, String strategy) {
+        return get(role, strategy).count;
+    }
+
+    public double getMean(String role, String strategy) {
+        return get(role, strategy).mean;
+    }
+
+    /**
+     * @return sample variance of the payoff (of the pair average for
+     * antithetic pairs)
+     */
+    public double getVariance(String role, String strategy) {
+        return get(role, strategy).variance();
+    }
+
+    /**
+     * @return half-width of the confidence interval around the mean payoff
+     */
+    public double getHalfWidth(String role, String strategy) {
+        return getHalfWidth(get(role, strategy));
+    }
+
+    /**
+     * @return mean payoff adjusted by the control variate
+     */
+    public double getAdjustedMean(String role, String strategy) {
+        return getAdjustedMean(get(role, strategy));
+    }
+
+    /**
+     * @return half-width of the confidence interval around the adjusted mean
+     */
+    public double getAdjustedHalfWidth(String role, String strategy) {
+        return getAdjustedHalfWidth(get(role, strategy));
+    }
+
+    /**
+     * Logs the mean and confidence interval of every strategy in every role.
+     */
+    public void print() {
+        for (String role : roles.keySet()) {
+            Main.printLog(role + ":");
+            for (String strategy : roles.get(role).keySet()) {
+                Accumulator a = roles.get(role).get(strategy);
+                String line = " " + strategy + ": " + a.mean + " +/- " + getHalfWidth(a);
+                if (controlVariate) {
+                    line += ", adjusted: " + getAdjustedMean(a) + " +/- " + getAdjustedHalfWidth(a);
+                }
+                Main.printLog(line + " (" + a.count + (antithetic ? " pairs)" : " samples)"));
+            }
+        }
+    }
+
+    private Accumulator get(String role, String strategy) {
+        if (!roles.containsKey(role) || !roles.get(role).containsKey(strategy)) {
+            throw new RuntimeException("No payoffs for " + strategy + " in role " + role);
+        }
+        return roles.get(role).get(strategy);
+    }
+
+    private int getSamples(Accumulator a) {
+        return antithetic ? 2 * a.count : a.count;
+    }
+
+    private double getHalfWidth(Accumulator a) {
+        if (a.count < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return getCritical(a.count - 1) * Math.sqrt(a.variance() / a.count);
+    }
+
+    // Mean less the part explained by the control's miss of its expected value
+    private double getAdjustedMean(Accumulator a) {
+        if (!(a.m2Control > 0)) {
+            return a.mean;
+        }
+        return a.mean - (a.coMoment / a.m2Control) * (a.meanControl - controlMean);
+    }
+
+    private double getAdjustedHalfWidth(Accumulator a) {
+        if (a.count < 3 || !(a.m2Control > 0)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // Variance left over after regressing on the control, one more degree of freedom spent on the slope
+        double residual = Math.max(0, a.m2 - a.coMoment * a.coMoment / a.m2Control) / (a.count - 2);
+        return getCritical(a.count - 2) * Math.sqrt(residual / a.count);
+    }
+
+    private double getCritical(int df) {
+        if (!critical.containsKey(df)) {
+            critical.put(df, new TDistribution(df).inverseCumulativeProbability(0.5 + confidence / 2d));
+        }
+        return critical.get(df);
+    }
+
+    /**
+     * Welford's running means, sums of squared deviations and co-moment of
+     * the payoff and its control.
+     */
+    private class Accumulator {
+
+        public int count = 0;
+        public double mean = 0, m2 = 0;
+        public double meanControl = 0, m2Control = 0, coMoment = 0;
+        // First sample of an antithetic pair, 2k - 1, waiting for the second, 2k (0 if none)
+        private int pendingSample = 0;
+        private double pendingValue, pendingControl;
+
+        public void add(int sample, double x, double control) {
+            if (antithetic) {
+                if (sample % 2 == 1) {
+                    // Whatever was waiting lost its other half
+                    pendingSample = sample;
+                    pendingValue = x;
+                    pendingControl = control;
+                    return;
+                }
+                if (pendingSample != sample - 1) {
+                    // The first half failed
+                    return;
+                }
+                pendingSample = 0;
+                x = (x + pendingValue) / 2d;
+                control = (control + pendingControl) / 2d;
+            }
+            count++;
+            double delta = x - mean;
+            mean += delta / count;
+            m2 += delta * (x - mean);
+            double controlDelta = control - meanControl;
+            meanControl += controlDelta / count;
+            m2Control += controlDelta * (control - meanControl);
+            coMoment += delta * (control - meanControl);
+        }
+
+        public void fail(int sample) {
+            if (pendingSample == sample || pendingSample == sample - 1) {
+                pendingSample = 0;
+            }
+        }
+
+        public double variance() {
+            return count < 2 ? Double.NaN : m2 / (count - 1);
+        }
+    }
+}
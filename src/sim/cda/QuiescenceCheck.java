@@ -0,0 +1,117 @@
+package sim.cda;
+
+import ab3d.auction.PQBid;
+import ab3d.auction.Price;
+import ab3d.auction.Quote;
+import java.util.Arrays;
+import sim.cda.engine.Clock;
+import sim.cda.engine.LocalMarket;
+import sim.cda.engine.MarketGateway;
+import sim.cda.engine.RepetitionSchedule;
+
+/**
+ * Checks the feasibility rule of QuiescenceDetector on a small market, and
+ * that a quiescent repetition ends early on the schedule: the next
+ * repetition starts sooner, the local market flushes its bids then, and a
+ * verdict too close to the end leaves the schedule be.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class QuiescenceCheck {
+
+    public static void main(String[] args) {
+        final long tick = CDAGameConstants.BID_SLEEP_TIME;
+        RepetitionSchedule schedule = new RepetitionSchedule(0, CDAGameConstants.AUCTION_REPETITIONS, CDAGameConstants.AUCTION_LEN);
+        QuiescenceDetector detector = new QuiescenceDetector(4, 0, schedule);
+        ManualClock clock = new ManualClock();
+        LocalMarket market = new LocalMarket(1, clock, schedule);
+        market.addAgent(1, Arrays.asList(150, 90));
+        MarketGateway buyer = market.connect(1);
+
+        // Two buyers and two sellers report their next values, one tick at a time
+        check(!detector.update(0, 1, true, 150, 0), "no verdict before every agent has reported");
+        check(!detector.update(0, 2, true, 120, 0), "no verdict before every agent has reported");
+        check(!detector.update(0, 3, false, 100, 0), "no verdict before every agent has reported");
+        check(!detector.update(0, 4, false, 130, 0), "buyer at 150 can still trade with seller at 100");
+        clock.now = tick / 2;
+        buyer.submitBid(bid(1, 80), LocalMarket.AUCTION_ID);
+        // Buyer 1 and seller 3 trade and report their next units
+        check(!detector.update(0, 1, true, 90, tick), "buyer 2 at 120 can still trade with seller 3 at 100");
+        check(detector.update(0, 3, false, 125, tick), "no buyer value (90, 120) reaches a seller cost (125, 130)");
+        check(detector.update(0, 2, true, 120, tick + 1), "the repetition stays quiescent");
+
+        // Every agent gets a turn to hear of it, then the next repetition starts
+        long end = tick + QuiescenceDetector.NOTICE_TIME;
+        check(schedule.getEnd(0) == end && schedule.getStart(1) == end, "the repetition ends once every agent has heard");
+        check(schedule.getStart(2) == end + CDAGameConstants.AUCTION_LEN, "later repetitions move up");
+        check(schedule.getSavedTime() == CDAGameConstants.AUCTION_LEN - end, "the rest of the repetition is saved");
+        check(schedule.getRepetition(end - 1) == 0 && schedule.getRepetition(end) == 1, "transactions belong to the repetition running at the time");
+        clock.now = end - 1;
+        check(isBid(market.connect(1).getQuote(LocalMarket.AUCTION_ID), 80), "the bid stands until the repetition ends");
+        clock.now = end;
+        check(!isBid(market.connect(1).getQuote(LocalMarket.AUCTION_ID), 80), "the market flushes the bid when the repetition ends");
+
+        // A verdict in the last turns of a repetition does not move it
+        long late = schedule.getEnd(1) - CDAGameConstants.AUCTION_BUFFER_LEN - QuiescenceDetector.NOTICE_TIME;
+        for (int agentID = 1; agentID <= 4; agentID++) {
+            detector.update(1, agentID, agentID <= 2, null, late);
+        }
+        check(detector.getQuiescentRepetitions() == 2, "two repetitions quiescent");
+        check(schedule.getSavedTime() == CDAGameConstants.AUCTION_LEN - end, "a late verdict saves nothing");
+
+        // The market closes at the end of the last repetition
+        int last = CDAGameConstants.AUCTION_REPETITIONS - 1;
+        clock.now = schedule.getEnd(last) - 1;
+        check(!market.isClosed(), "the market is open until the end of the last repetition");
+        clock.now = schedule.getEnd(last);
+        check(market.isClosed(), "the market closes at the end of the last repetition");
+        System.out.println("Quiescence checks passed, " + schedule.getSavedTime() + " ms saved");
+    }
+
+    private static PQBid bid(int quantity, int price) {
+        PQBid bid = new PQBid();
+        bid.addPoint(quantity, new Price(price));
+        return bid;
+    }
+
+    private static boolean isBid(Quote quote, int price) {
+        return quote.lastBidPrice != null && quote.lastBidPrice.intValue() == price;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new RuntimeException("Check failed: " + description);
+        }
+    }
+
+    /**
+     * Clock that stands wherever it is put.
+     */
+    private static class ManualClock implements Clock {
+
+        public long now = 0;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void sleepUntil(long time) {
+            now = Math.max(now, time);
+        }
+
+        @Override
+        public void schedule(long time, Runnable action) {
+            throw new RuntimeException("Nothing is scheduled on this clock.");
+        }
+
+        @Override
+        public void attach() {
+        }
+
+        @Override
+        public void detach() {
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package sim.cda;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import sim.cda.engine.RepetitionSchedule;
+
+/**
+ * Decides when a repetition can end early: when no further trade is feasible
+ * given the values the agents have left, or (optionally) when no improving
+ * bid has arrived for some number of ticks. The repetition then ends on the
+ * schedule once every agent has had a turn to hear of it, and the next one
+ * starts right away.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class QuiescenceDetector {
+
+    // Simulation spec parameter turning the detector on ("on") or off ("off", default)
+    public static final String PARAM_QUIESCENCE = "quiescence";
+    // Simulation spec parameter holding the number of ticks without an improving bid (0, default, for never)
+    public static final String PARAM_TICKS = "quiescence_ticks";
+    // Every agent takes a turn within this long of a verdict (turns are at most 1.25 ticks apart)
+    public static final long NOTICE_TIME = 2 * CDAGameConstants.BID_SLEEP_TIME;
+    private final int agents, ticks;
+    private final RepetitionSchedule schedule;
+    private final Repetition[] repetitions = new Repetition[CDAGameConstants.AUCTION_REPETITIONS];
+
+    public QuiescenceDetector(int agents, int ticks, RepetitionSchedule schedule) {
+        this.agents = agents;
+        this.ticks = ticks;
+        this.schedule = schedule;
+        for (int r = 0; r < repetitions.length; r++) {
+            repetitions[r] = new Repetition();
+        }
+    }
+
+    /**
+     * Records a bid made in the repetition.
+     */
+    public synchronized void bid(int repetitionIndex, long timestamp, boolean improving) {
+        if (improving) {
+            repetitions[repetitionIndex].lastImprovement = timestamp;
+        }
+    }
+
+    /**
+     * Records the next value of the agent (null once it can not trade).
+     *
+     * @return whether the repetition is over
+     */
+    public synchronized boolean update(int repetitionIndex, int agentID, boolean buyer, Integer value, long now) {
+        Repetition r = repetitions[repetitionIndex];
+        if (r.quiescentTime >= 0) {
+            return true;
+        }
+        if (r.lastImprovement < 0) {
+            r.lastImprovement = now;
+        }
+        r.reported.add(agentID);
+        Map<Integer, Integer> values = buyer ? r.buyerValues : r.sellerValues;
+        if (value == null) {
+            values.remove(agentID);
+        } else {
+            values.put(agentID, value);
+        }
+        // Is there a buyer who values a unit at least as much as some seller?
+        if (r.reported.size() >= agents) {
+            int highestBuyerValue = Integer.MIN_VALUE, lowestSellerValue = Integer.MAX_VALUE;
+            for (int v : r.buyerValues.values()) {
+                highestBuyerValue = Math.max(highestBuyerValue, v);
+            }
+            for (int v : r.sellerValues.values()) {
+                lowestSellerValue = Math.min(lowestSellerValue, v);
+            }
+            if (highestBuyerValue < lowestSellerValue) {
+                Main.printLog("Repetition " + repetitionIndex + " quiescent: no feasible trade left");
+                end(repetitionIndex, now);
+                return true;
+            }
+        }
+        // Has the market gone quiet?
+        if (ticks > 0 && now - r.lastImprovement >= ticks * CDAGameConstants.BID_SLEEP_TIME) {
+            Main.printLog("Repetition " + repetitionIndex + " quiescent: no improving bid in " + ticks + " ticks");
+            end(repetitionIndex, now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the repetition once every agent has heard of the verdict. Close to
+     * the end some agents may have had their last turn and be waiting for the
+     * next repetition already, so a verdict that late leaves the schedule be.
+     */
+    private void end(int repetitionIndex, long now) {
+        repetitions[repetitionIndex].quiescentTime = now;
+        long end = now + NOTICE_TIME;
+        if (end <= schedule.getEnd(repetitionIndex) - CDAGameConstants.AUCTION_BUFFER_LEN - NOTICE_TIME) {
+            schedule.endEarly(repetitionIndex, end);
+        }
+    }
+
+    /**
+     * @return number of repetitions that went quiescent
+     */
+    public synchronized int getQuiescentRepetitions() {
+        int quiescent = 0;
+        for (Repetition r : repetitions) {
+            if (r.quiescentTime >= 0) {
+                quiescent++;
+            }
+        }
+        return quiescent;
+    }
+
+    private static class Repetition {
+
+        // Maps <agent ID, next value>
+        public final Map<Integer, Integer> buyerValues = new HashMap<Integer, Integer>(), sellerValues = new HashMap<Integer, Integer>();
+        public final Set<Integer> reported = new HashSet<Integer>();
+        public long lastImprovement = -1, quiescentTime = -1;
+    }
+}
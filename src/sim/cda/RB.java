@@ -1,12 +1,7 @@
 package sim.cda;
 
 import ab3d.util.Log;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.BitSet;
 
 /**
  *
@@ -22,8 +17,11 @@ public class RB extends CDAGameAgent implements Runnable {
     public static final int WINDOW_SIZE = 8;
     private double r;
     private Double tau = null;
-    private int bidsIndex = 0, currentRepetition = -1;
-    private Map<Integer, Set<CDAGameBid>> alreadyHandled = new HashMap<Integer, Set<CDAGameBid>>();
+    private BidLog.Cursor bids = null;
+    private AggressivenessModel model = null;
+    private int currentRepetition = -1;
+    // Transacted bids already handled as the counterpart of another
+    private final BitSet alreadyHandled = new BitSet();
 
     public RB(String host, int port, String agentID, String agentPW) {
         super(host, port, agentID, agentPW);
@@ -40,181 +38,145 @@ public class RB extends CDAGameAgent implements Runnable {
         initRB();
     }
 
+    @Override
+    public void setContext(MarketContext context) {
+        super.setContext(context);
+        bids = context.bidLog.cursor(0);
+        model = AggressivenessModel.get(context.params);
+    }
+
     private void initRB() {
         logID = LOG_ID;
     }
 
+    @Override
+    protected int getMarketAccess() {
+        // It reads the bid log and the trades
+        return MARKET_READ;
+    }
+
     @Override
     public void adjustState() {
         // New repetition?
         if (currentRepetition != repetitionIndex) {
             // Initialize r randomly from U[-0.2, 0.2]
-            r = 0.4 * Utils.RANDOM.nextDouble() - 0.2;
+            r = 0.4 * random.nextDouble() - 0.2;
             tau = null;
-            bidsIndex = 0;
-            alreadyHandled.put(repetitionIndex, new HashSet<CDAGameBid>());
+            bids.reset(repetitionIndex);
             currentRepetition = repetitionIndex;
         }
         // Adjust r and tau if there has been at least one transaction
-        if (auctions[repetitionIndex].currentValue() != null && Utils.TRANSACTED_BIDS.containsKey(repetitionIndex) && !Utils.TRANSACTED_BIDS.get(repetitionIndex).isEmpty()) {
-            // Update the risk from all of the bids since last checking
-            if (Utils.BIDS.containsKey(repetitionIndex)) {
-                // Update the risk factor based on the events in the market
-                for (; bidsIndex < Utils.BIDS.get(repetitionIndex).size(); bidsIndex++) {
-                    CDAGameBid bid = Utils.BIDS.get(repetitionIndex).get(bidsIndex);
+        BidLog bidLog = context.bidLog;
+        TradeHistory trades = context.trades;
+        if (auctions[repetitionIndex].currentValue() != null && bidLog.transactedCount(repetitionIndex) > 0) {
+            // Update the risk factor based on the events in the market
+            while (bids.hasNext()) {
+                int bid = bids.next();
 
-                    // Make sure this is not a transaction that was already handled
-                    if (alreadyHandled.get(repetitionIndex).contains(bid)) {
-                        continue;
-                    }
+                // Make sure this is not a transaction that was already handled
+                if (alreadyHandled.get(bid)) {
+                    continue;
+                }
 
-                    // What is the average for the last WINDOW_SIZE (at most) previous transactions?
-                    // Make a list of all transactions that occurred before this bid
-                    List<CDAGameBid> prevTransactions = new ArrayList<CDAGameBid>();
-                    for (int i = 0; i < Utils.TRANSACTED_BIDS.get(repetitionIndex).size(); i++) {
-                        CDAGameBid toCopy = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(i);
-                        // This transaction occurred after the current bid
-                        if (toCopy.timestamp.longValue() > bid.timestamp.longValue()) {
-                            break;
-                        }
-                        // Add to the list
-                        prevTransactions.add(toCopy);
-                    }
-                    // The last one should be a bid in order to make it a full transaction
-                    if (!prevTransactions.isEmpty() && !prevTransactions.get(prevTransactions.size() - 1).agentIsBuyer) {
-                        prevTransactions.remove(prevTransactions.size() - 1);
-                    }
-                    // Can't update tau without a transaction
-                    if (prevTransactions.isEmpty()) {
-                        continue;
-                    }
+                // What is the average for the last WINDOW_SIZE (at most) previous transactions?
+                // Count the transactions completed before this bid
+                int prevTransactions = trades.countBefore(repetitionIndex, bidLog.timestamp(bid));
+                // Can't update tau without a transaction
+                if (prevTransactions == 0) {
+                    continue;
+                }
 
-                    // Calculate p*
-                    double sum = 0, count = 0;
-                    // How many transactions will be used in the average?
-                    if (prevTransactions.size() >= WINDOW_SIZE * 2) {
-                        count = WINDOW_SIZE;
-                    } else {
-                        count = prevTransactions.size() / 2;
-                    }
-                    // Add up the price for all of the transactions
-                    for (int i = prevTransactions.size() - 1, num = 0; i >= 0 && num < count; i -= 2, num++) {
-                        // Get the two bids
-                        CDAGameBid bid1 = prevTransactions.get(i);
-                        CDAGameBid bid2 = prevTransactions.get(i - 1);
-                        // Get the transaction price (earliest of the two)
-                        double q;
-                        if (bid1.timestamp.longValue() <= bid2.timestamp.longValue()) {
-                            q = bid1.price.doubleValue();
-                        } else {
-                            q = bid2.price.doubleValue();
-                        }
-                        // Increment sum
-                        sum += q;
-                    }
-                    double pStar = sum / count;
-                    print("p* = " + pStar);
+                // Calculate p*
+                // How many transactions will be used in the average?
+                int count = Math.min(prevTransactions, WINDOW_SIZE);
+                // Add up the price for all of the transactions
+                double sum = trades.sum(repetitionIndex, prevTransactions - count, prevTransactions);
+                double pStar = sum / count;
+                print("p* = " + pStar);
 
-                    // Update tau
-                    Double newTau = null;
-                    if (isBuyer()) {
-                        if (r >= 0 && r <= 1) {
+                // Update tau
+                Double newTau = null;
+                if (isBuyer()) {
+                    if (r >= 0 && r <= 1) {
 //                            newTau = pStar * (1 - r * Math.exp(THETA * (r - 1d)));
-                            newTau = pStar - (pStar - CDAGameConstants.V_MIN) * r * Math.exp(THETA * (r - 1d));
-                        } else if (r >= -1 && r < 0) {
+                        newTau = pStar - model.rbShape(pStar - CDAGameConstants.V_MIN, r, THETA);
+                    } else if (r >= -1 && r < 0) {
 //                            newTau = pStar + (auctions[repetitionIndex].currentValue().doubleValue() - pStar) * (1 - (r + 1) * Math.exp(r * ((pStar * Math.exp(-1d * THETA)) / (auctions[repetitionIndex].currentValue().doubleValue() - pStar) - 1d)));
-                            newTau = pStar - (auctions[repetitionIndex].currentValue().doubleValue() - pStar) * r * Math.exp((r + 1d) * (Math.log((pStar - CDAGameConstants.V_MIN) / (auctions[repetitionIndex].currentValue().doubleValue() - pStar)) - THETA));
-                        }
-                    } else {
-                        if (r >= 0 && r <= 1) {
-                            newTau = pStar + (CDAGameConstants.V_MAX - pStar) * r * Math.exp((r - 1) * THETA);
-                        } else if (r >= -1 && r < 0) {
-                            newTau = pStar + (pStar - auctions[repetitionIndex].currentValue().doubleValue()) * r * Math.exp((r + 1d) * (Math.log((CDAGameConstants.V_MAX - pStar) / (pStar - auctions[repetitionIndex].currentValue().doubleValue())) - THETA));
-                        }
+                        newTau = pStar - (auctions[repetitionIndex].currentValue().doubleValue() - pStar) * r * Math.exp((r + 1d) * (Math.log((pStar - CDAGameConstants.V_MIN) / (auctions[repetitionIndex].currentValue().doubleValue() - pStar)) - THETA));
                     }
-                    // This happens
-                    if (newTau == null || newTau.equals(Double.NaN)) {
-                        continue;
+                } else {
+                    if (r >= 0 && r <= 1) {
+                        newTau = pStar + model.rbShape(CDAGameConstants.V_MAX - pStar, r, THETA);
+                    } else if (r >= -1 && r < 0) {
+                        newTau = pStar + (pStar - auctions[repetitionIndex].currentValue().doubleValue()) * r * Math.exp((r + 1d) * (Math.log((CDAGameConstants.V_MAX - pStar) / (pStar - auctions[repetitionIndex].currentValue().doubleValue())) - THETA));
                     }
-                    print("new tau = " + newTau);
-                    tau = newTau;
+                }
+                // This happens
+                if (newTau == null || newTau.equals(Double.NaN)) {
+                    continue;
+                }
+                print("new tau = " + newTau);
+                tau = newTau;
 
-                    // In which direction should the risk factor be adjusted?
-                    double direction = 0;
-                    if (isBuyer()) {
-                        // If this bid resulted in a transaction
-                        if (Utils.isTransacted(repetitionIndex, bid)) {
-                            // Get both bids to determine q
-                            int index = Utils.TRANSACTED_BIDS.get(repetitionIndex).indexOf(bid);
-                            CDAGameBid cBid;
-                            if (bid.agentIsBuyer) {
-                                // The corresponding ask is down one index
-                                cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index - 1);
-                            } else {
-                                // The corresponding bid is up one index
-                                cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index + 1);
-                            }
-                            alreadyHandled.get(repetitionIndex).add(cBid);
-                            // Which was submitted first? 
-                            double q;
-                            if (bid.timestamp.longValue() < cBid.timestamp.longValue()) {
-                                q = bid.price.doubleValue();
-                            } else {
-                                q = cBid.price.doubleValue();
-                            }
-                            // Increase risk factor if target >= transaction price
-                            if (tau.doubleValue() >= q) {
-                                direction = 1;
-                            } // Otherwise decrease risk factor
-                            else {
-                                direction = -1;
-                            }
-                        } // This bid did not (immediately) result in a transaction
-                        else if (bid.agentIsBuyer && tau.doubleValue() <= bid.price.intValue()) {
-                            direction = -1;
+                // In which direction should the risk factor be adjusted?
+                double direction = 0;
+                if (isBuyer()) {
+                    // If this bid resulted in a transaction
+                    if (bidLog.isTransacted(bid)) {
+                        // Get both bids to determine q
+                        int cBid = bidLog.counterpart(bid);
+                        alreadyHandled.set(cBid);
+                        // Which was submitted first? 
+                        double q;
+                        if (bidLog.timestamp(bid) < bidLog.timestamp(cBid)) {
+                            q = bidLog.price(bid);
+                        } else {
+                            q = bidLog.price(cBid);
                         }
-                    } else {
-                        // If this bid resulted in a transaction
-                        if (Utils.isTransacted(repetitionIndex, bid)) {
-                            // Get both bids to determine q
-                            int index = Utils.TRANSACTED_BIDS.get(repetitionIndex).indexOf(bid);
-                            CDAGameBid cBid;
-                            if (bid.agentIsBuyer) {
-                                // The corresponding ask is down one index
-                                cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index - 1);
-                            } else {
-                                // The corresponding bid is up one index
-                                cBid = Utils.TRANSACTED_BIDS.get(repetitionIndex).get(index + 1);
-                            }
-                            alreadyHandled.get(repetitionIndex).add(cBid);
-                            // Which was submitted first? 
-                            double q;
-                            if (bid.timestamp.longValue() < cBid.timestamp.longValue()) {
-                                q = bid.price.doubleValue();
-                            } else {
-                                q = cBid.price.doubleValue();
-                            }
-                            // Increase risk factor if target <= transaction price
-                            if (tau.doubleValue() <= q) {
-                                direction = 1;
-                            } // Otherwise decrease risk factor
-                            else {
-                                direction = -1;
-                            }
-                        } // This bid did not (immediately) result in a transaction
-                        else if (!bid.agentIsBuyer && tau.doubleValue() >= bid.price.intValue()) {
+                        // Increase risk factor if target >= transaction price
+                        if (tau.doubleValue() >= q) {
+                            direction = 1;
+                        } // Otherwise decrease risk factor
+                        else {
                             direction = -1;
                         }
+                    } // This bid did not (immediately) result in a transaction
+                    else if (bidLog.isBuy(bid) && tau.doubleValue() <= bidLog.price(bid)) {
+                        direction = -1;
                     }
-                    // No change to risk factor
-                    if (direction == 0) {
-                        continue;
+                } else {
+                    // If this bid resulted in a transaction
+                    if (bidLog.isTransacted(bid)) {
+                        // Get both bids to determine q
+                        int cBid = bidLog.counterpart(bid);
+                        alreadyHandled.set(cBid);
+                        // Which was submitted first? 
+                        double q;
+                        if (bidLog.timestamp(bid) < bidLog.timestamp(cBid)) {
+                            q = bidLog.price(bid);
+                        } else {
+                            q = bidLog.price(cBid);
+                        }
+                        // Increase risk factor if target <= transaction price
+                        if (tau.doubleValue() <= q) {
+                            direction = 1;
+                        } // Otherwise decrease risk factor
+                        else {
+                            direction = -1;
+                        }
+                    } // This bid did not (immediately) result in a transaction
+                    else if (!bidLog.isBuy(bid) && tau.doubleValue() >= bidLog.price(bid)) {
+                        direction = -1;
                     }
-                    // Adjust the risk factor
-                    double delta = r * (1 + direction * 0.05) + direction * 0.025;
-                    r = r + BETA * (delta - r);
-                    print("r = " + r);
                 }
+                // No change to risk factor
+                if (direction == 0) {
+                    continue;
+                }
+                // Adjust the risk factor
+                double delta = r * (1 + direction * 0.05) + direction * 0.025;
+                r = r + BETA * (delta - r);
+                print("r = " + r);
             }
         }
     }
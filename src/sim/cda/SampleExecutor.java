@@ -0,0 +1,117 @@
+package sim.cda;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the samples of a simulation on a pool of worker threads, and reports
+ * them back in sample order.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class SampleExecutor {
+
+    // Simulation spec parameter holding the master seed
+    public static final String PARAM_SEED = "seed";
+    private final int parallelism;
+
+    public SampleExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new RuntimeException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the seed of the sample, derived from the master seed (SplitMix64)
+     */
+    public static long sampleSeed(long masterSeed, int sample) {
+        long z = masterSeed + sample * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Runs samples 1 to the given number. The listener is called on this
+     * thread, once per sample and in sample order, no matter which sample
+     * finishes first. Stops early, dropping the samples still to come, once
+     * the listener has enough. In antithetic pairs, every even sample plays
+     * the mirror image of the values of the sample before it, and only whole
+     * pairs are taken.
+     */
+    public void run(int samples, final File resultsDir, final Map<String, Collection<Object>> profile, final Map<String, String> params, final long masterSeed, Listener listener) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sample-worker-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final boolean antithetic = Simulation.isAntithetic(params);
+        try {
+            // Queue every sample
+            List<Future<SimulationResults>> futures = new ArrayList<Future<SimulationResults>>(samples);
+            for (int i = 1; i <= samples; i++) {
+                final int sample = i;
+                final long seed = sampleSeed(masterSeed, i);
+                futures.add(pool.submit(new Callable<SimulationResults>() {
+
+                    @Override
+                    public SimulationResults call() throws Exception {
+                        Main.printLog("Collecting sample #" + sample + " (seed " + seed + ")");
+                        Simulation simulation = new Simulation(sample, resultsDir, profile, params, seed);
+                        if (antithetic && sample % 2 == 0) {
+                            simulation.mirrorValues(sample - 1, sampleSeed(masterSeed, sample - 1));
+                        }
+                        return simulation.run();
+                    }
+                }));
+            }
+            // Hand back the results in order
+            for (int i = 1; i <= samples; i++) {
+                try {
+                    listener.sampleFinished(i, futures.get(i - 1).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    listener.sampleFailed(i, cause instanceof Exception ? (Exception) cause : e);
+                }
+                if (i < samples && (!antithetic || i % 2 == 0) && listener.hasEnough()) {
+                    Main.printLog("Stopping early after sample #" + i + " of " + samples);
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public interface Listener {
+
+        public void sampleFinished(int sample, SimulationResults results);
+
+        public void sampleFailed(int sample, Exception e);
+
+        /**
+         * @return whether the samples so far are enough
+         */
+        public boolean hasEnough();
+    }
+}
@@ -1,17 +1,27 @@
 package sim.cda;
 
+import ab3d.auction.Transaction;
 import ab3d.util.Log;
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
 import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.Element;
 import nu.xom.Elements;
+import sim.cda.engine.Clock;
+import sim.cda.engine.LocalMarket;
+import sim.cda.engine.RepetitionSchedule;
+import sim.cda.engine.TimerWheel;
+import sim.cda.engine.VirtualClock;
+import sim.cda.engine.WallClock;
 
 /**
  *
@@ -19,60 +29,117 @@ import nu.xom.Elements;
  */
 public class Simulation {
 
+    // Simulation spec parameter choosing the clock: "wall" (default) or "virtual"
+    public static final String PARAM_CLOCK = "clock";
+    // Simulation spec parameter choosing the market: "ab3d" (default) or "local"
+    public static final String PARAM_MARKET = "market";
+    // Simulation spec parameter choosing the agent threads: "platform" (default) or "virtual" (Java 21+)
+    public static final String PARAM_THREADS = "agent_threads";
+    // Simulation spec parameter choosing how agents are driven: "threads" (default) or "wheel"
+    public static final String PARAM_DRIVER = "agent_driver";
+    // Simulation spec parameter writing each local game's results to alloc.xml: "off" (default) or "on"
+    public static final String PARAM_ALLOC_XML = "alloc_xml";
+    // Simulation spec parameter playing samples in antithetic pairs: "off" (default) or "on"
+    public static final String PARAM_ANTITHETIC = "antithetic";
+    // How often the local market checks whether its agents are done (ms)
+    private static final long AGENT_CHECK_INTERVAL = 1000;
     public final int id;
     public final File resultsDir;
     public final Map<String, Collection<Object>> profile;
     public final Map<String, String> params;
+    public final long seed;
+    // Every random stream of the sample is split from this one
+    private final SplittableRandom random;
+    // Sample whose values this one plays mirrored, and that sample's seed (0 if it draws its own)
+    private int mirrorSample = 0;
+    private long mirrorSeed = 0;
 
     public Simulation(int id, File resultsDir, Map<String, Collection<Object>> profile, Map<String, String> params) {
+        this(id, resultsDir, profile, params, new SplittableRandom().nextLong());
+    }
+
+    public Simulation(int id, File resultsDir, Map<String, Collection<Object>> profile, Map<String, String> params, long seed) {
         this.id = id;
         this.resultsDir = resultsDir;
         this.profile = profile;
         this.params = params;
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Plays the mirror image of another sample's values, each value v turned
+     * into V_MIN + V_MAX - v, so that the two samples are antithetic.
+     */
+    public void mirrorValues(int sample, long seed) {
+        mirrorSample = sample;
+        mirrorSeed = seed;
     }
 
     public SimulationResults run() throws Exception {
-        // Reset the market information for this simulation
-        Utils.reset();
-        GD.reset();
-        GDX.reset();
-        
-        // Who is playing?
-        StringBuilder players = new StringBuilder();
-        boolean first = true;
-        for (Object o : profile.get("Sellers")) {
-            if (!first) {
+        // Catch a bad GDX solver or thread setting before any agent starts
+        GDXSolver.create(params, GDX.GAMMA);
+        boolean virtualThreads = isVirtualThreads(params);
+
+        // Start the game
+        long startTime = System.currentTimeMillis();
+        Clock clock = createClock(startTime);
+        // AB3D runs its repetitions on its own schedule
+        RepetitionSchedule schedule = null;
+        if (isLocalMarket(params)) {
+            schedule = new RepetitionSchedule(startTime, CDAGameConstants.AUCTION_REPETITIONS, CDAGameConstants.AUCTION_LEN);
+        }
+
+        // Market information belongs to this simulation alone
+        MarketContext context = new MarketContext(profile.get("Buyers"), params, schedule, createQuiescenceDetector(schedule));
+
+        LocalMarket market = null;
+        if (schedule != null) {
+            market = createMarket(clock, schedule);
+        } else {
+            // Who is playing?
+            StringBuilder players = new StringBuilder();
+            boolean first = true;
+            for (Object o : profile.get("Sellers")) {
+                if (!first) {
+                    players.append(":");
+                } else {
+                    first = false;
+                }
+                players.append(Main.AGENTS.get((String) o));
+            }
+            for (Object o : profile.get("Buyers")) {
                 players.append(":");
-            } else {
-                first = false;
+                players.append(Main.AGENTS.get((String) o));
             }
-            players.append(Main.AGENTS.get((String) o));
-        }
-        for (Object o : profile.get("Buyers")) {
-            players.append(":");
-            players.append(Main.AGENTS.get((String) o));
+            // The scorer AB3D creates for the game finds the roles here
+            MarketContext.startGame(String.valueOf(id), context);
+            Utils.send("<createGame><gameFile>game/game.xml</gameFile><players>" + players.toString() + "</players><startTime>" + startTime + "</startTime></createGame>", Main.GAME_SCHEDULER);
         }
 
-        // Start the game
-        Utils.send("<createGame><gameFile>game/game.xml</gameFile><players>" + players.toString() + "</players><startTime>" + System.currentTimeMillis() + "</startTime></createGame>", Main.GAME_SCHEDULER);
-
-        // Create and start the bidding agent threads
         List<Thread> agentThreads = new LinkedList<Thread>();
         Log log = new Log(Log.NO_LOGGING, resultsDir.getAbsolutePath(), "agents" + id + ".log", true);
-        for (Object o : profile.get("Sellers")) {
-            agentThreads.add(createPlayer((String) o, log));
+        long endTime = startTime + CDAGameConstants.AUCTION_LEN * CDAGameConstants.AUCTION_REPETITIONS + 10000;
+        if (clock instanceof TimerWheel) {
+            // Step every agent on this thread
+            TimerWheel wheel = (TimerWheel) clock;
+            for (Object o : profile.get("Sellers")) {
+                startStepping((String) o, log, wheel, market, context, random.split());
+            }
+            for (Object o : profile.get("Buyers")) {
+                startStepping((String) o, log, wheel, market, context, random.split());
+            }
+            wheel.runUntil(endTime);
+        } else {
+            runThreads(agentThreads, log, clock, market, context, virtualThreads, endTime);
         }
-        for (Object o : profile.get("Buyers")) {
-            agentThreads.add(createPlayer((String) o, log));
+        if (context.quiescence != null) {
+            Main.printLog("Quiescence ended sample #" + id + " " + (context.schedule.getSavedTime() / 1000d) + " s early (" + context.quiescence.getQuiescentRepetitions() + " repetitions quiescent)");
         }
-        Collections.shuffle(agentThreads);
-        for (Thread t : agentThreads) {
-            t.start();
+        if (context.gdxPolicies != null && context.gdxPolicies.getHits() + context.gdxPolicies.getMisses() > 0) {
+            Main.printLog("GDX policy cache of sample #" + id + ": " + context.gdxPolicies.getHits() + " hits, " + context.gdxPolicies.getMisses() + " misses, " + context.gdxPolicies.getBytes() + " bytes");
         }
 
-        // Wait for the game to run and get cleaned up
-        Thread.sleep(CDAGameConstants.AUCTION_LEN * CDAGameConstants.AUCTION_REPETITIONS + 10000);
-
         // Kill the bidding agents
         for (Thread agentThread : agentThreads) {
             try {
@@ -84,26 +151,47 @@ public class Simulation {
         // Return results
         SimulationResults results = new SimulationResults();
 
-        // Open results file
-        File allocFile = new File(resultsDir, id + "/alloc.xml");
-        if (!allocFile.exists()) {
-            return results;
-        }
-
-        // Parse results file
-        Builder parser = new Builder();
-        Document allocDoc = parser.build(allocFile);
-        Element resultsEl = allocDoc.getRootElement();
-        Element scoresEl = resultsEl.getFirstChildElement("scores");
-        Elements agentEls = scoresEl.getChildElements("agent");
         // Maps <User name, Score>
-        Map<String, String> scores = new HashMap<String, String>();
-        for (int i = 0; i < agentEls.size(); i++) {
-            Element agentEl = agentEls.get(i);
-            Element userNameEl = agentEl.getFirstChildElement("userName");
-            Element scoreEl = agentEl.getFirstChildElement("score");
-            scores.put(userNameEl.getValue(), scoreEl.getValue());
+        Map<String, Double> scores = new HashMap<String, Double>();
+        List<int[]> buyerValues = new LinkedList<int[]>(), sellerValues = new LinkedList<int[]>();
+        if (market != null) {
+            // Score the game ourselves when AB3D did not run it
+            for (GameScores.Agent agent : scoreMarket(market, context).getAgents()) {
+                scores.put(agent.userName, agent.score);
+                (context.isBuyer(agent.userName) ? buyerValues : sellerValues).add(agent.values);
+            }
+        } else {
+            try {
+                // Open results file
+                File allocFile = new File(resultsDir, id + "/alloc.xml");
+                if (!allocFile.exists()) {
+                    return results;
+                }
+
+                // Parse results file
+                Builder parser = new Builder();
+                Document allocDoc = parser.build(allocFile);
+                Element resultsEl = allocDoc.getRootElement();
+                Element scoresEl = resultsEl.getFirstChildElement("scores");
+                Elements agentEls = scoresEl.getChildElements("agent");
+                for (int i = 0; i < agentEls.size(); i++) {
+                    Element agentEl = agentEls.get(i);
+                    Element userNameEl = agentEl.getFirstChildElement("userName");
+                    Element scoreEl = agentEl.getFirstChildElement("score");
+                    scores.put(userNameEl.getValue(), Double.valueOf(scoreEl.getValue()));
+                    Elements valueEls = agentEl.getFirstChildElement("values").getChildElements("value");
+                    int[] values = new int[valueEls.size()];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = Integer.parseInt(valueEls.get(j).getValue());
+                    }
+                    (context.isBuyer(userNameEl.getValue()) ? buyerValues : sellerValues).add(values);
+                }
+            } finally {
+                // AB3D has scored the game by now, or will not for this sample
+                MarketContext.endGame(String.valueOf(id));
+            }
         }
+        results.features.put(CompetitiveEquilibrium.FEATURE, CompetitiveEquilibrium.surplus(buyerValues, sellerValues));
 
         // Average results over the controlled agents
         for (String role : profile.keySet()) {
@@ -118,7 +206,7 @@ public class Simulation {
                 if (!results.payoffs.get(role).containsKey(strategy)) {
                     results.payoffs.get(role).put(strategy, 0d);
                 }
-                double score = Double.valueOf(scores.get(userName)).doubleValue();
+                double score = scores.get(userName).doubleValue();
                 results.payoffs.get(role).put(strategy, ((Double) results.payoffs.get(role).get(strategy)).doubleValue() + score);
             }
             // Average the results
@@ -133,33 +221,282 @@ public class Simulation {
         return results;
     }
 
-    private Thread createPlayer(final String player, final Log log) {
-        Thread agentThread = new Thread() {
+    private static boolean isAnyAlive(List<Thread> threads) {
+        for (Thread t : threads) {
+            if (t.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isLocalMarket(Map<String, String> params) {
+        String market = Utils.getParam(params, PARAM_MARKET, "ab3d");
+        if (market.equalsIgnoreCase("local")) {
+            return true;
+        } else if (!market.equalsIgnoreCase("ab3d")) {
+            throw new RuntimeException("Unknown market: " + market);
+        }
+        return false;
+    }
+
+    /**
+     * @return whether samples are played in antithetic pairs
+     */
+    public static boolean isAntithetic(Map<String, String> params) {
+        String antithetic = Utils.getParam(params, PARAM_ANTITHETIC, "off");
+        if (antithetic.equalsIgnoreCase("off")) {
+            return false;
+        } else if (!antithetic.equalsIgnoreCase("on")) {
+            throw new RuntimeException("Unknown antithetic setting: " + antithetic);
+        }
+        // AB3D draws its own values
+        if (!isLocalMarket(params)) {
+            throw new RuntimeException("Antithetic samples require the local market.");
+        }
+        return true;
+    }
+
+    private Clock createClock(long startTime) {
+        String driver = Utils.getParam(params, PARAM_DRIVER, "threads");
+        if (driver.equalsIgnoreCase("wheel")) {
+            // The wheel keeps its own time, and only the local market keeps to it
+            if (!isLocalMarket(params)) {
+                throw new RuntimeException("The timer wheel requires the local market.");
+            }
+            return new TimerWheel(startTime);
+        } else if (!driver.equalsIgnoreCase("threads")) {
+            throw new RuntimeException("Unknown agent driver: " + driver);
+        }
+        String clock = Utils.getParam(params, PARAM_CLOCK, "wall");
+        if (clock.equalsIgnoreCase("virtual")) {
+            // AB3D clears and time stamps on its own wall clock
+            if (!isLocalMarket(params)) {
+                throw new RuntimeException("The virtual clock requires the local market.");
+            }
+            return new VirtualClock(startTime);
+        } else if (!clock.equalsIgnoreCase("wall")) {
+            throw new RuntimeException("Unknown clock: " + clock);
+        }
+        return new WallClock();
+    }
+
+    private QuiescenceDetector createQuiescenceDetector(RepetitionSchedule schedule) {
+        String quiescence = Utils.getParam(params, QuiescenceDetector.PARAM_QUIESCENCE, "off");
+        if (quiescence.equalsIgnoreCase("off")) {
+            return null;
+        } else if (!quiescence.equalsIgnoreCase("on")) {
+            throw new RuntimeException("Unknown quiescence setting: " + quiescence);
+        }
+        // AB3D ends its repetitions on its own schedule
+        if (!isLocalMarket(params)) {
+            throw new RuntimeException("Quiescence detection requires the local market.");
+        }
+        int agents = profile.get("Sellers").size() + profile.get("Buyers").size();
+        return new QuiescenceDetector(agents, Integer.parseInt(Utils.getParam(params, QuiescenceDetector.PARAM_TICKS, "0")), schedule);
+    }
+
+    private LocalMarket createMarket(Clock clock, RepetitionSchedule schedule) throws IOException {
+        LocalMarket market = new LocalMarket(id, clock, schedule);
+        ValueTable table = ValueTable.getShared(params);
+        // A mirrored sample draws the values of the other sample of its pair
+        int valueSample = mirrorSample > 0 ? mirrorSample : id;
+        SplittableRandom valueRandom = mirrorSample > 0 ? new SplittableRandom(mirrorSeed) : random;
+        for (String role : profile.keySet()) {
+            int seat = 0;
+            for (Object o : profile.get(role)) {
+                List<Integer> values;
+                if (table != null) {
+                    // Same values for the same seat, whatever the strategy in it
+                    values = table.getValues(valueSample, role, seat);
+                } else {
+                    // Draw private values the same way pref_template.xml does
+                    values = new LinkedList<Integer>();
+                    for (int i = 0; i < CDAGameConstants.MAX_TRADES; i++) {
+                        values.add(CDAGameConstants.V_MIN + valueRandom.nextInt(CDAGameConstants.V_MAX - CDAGameConstants.V_MIN + 1));
+                    }
+                }
+                if (mirrorSample > 0) {
+                    List<Integer> mirrored = new LinkedList<Integer>();
+                    for (int value : values) {
+                        mirrored.add(CDAGameConstants.V_MIN + CDAGameConstants.V_MAX - value);
+                    }
+                    values = mirrored;
+                }
+                market.addAgent(Integer.valueOf(Main.AGENTS.get((String) o)), values);
+                seat++;
+            }
+        }
+        return market;
+    }
+
+    private GameScores scoreMarket(LocalMarket market, MarketContext context) throws Exception {
+        CDAGameScorer scorer = new CDAGameScorer();
+        scorer.setContext(context);
+        scorer.setSchedule(context.schedule);
+        Map<Integer, List<Integer>> values = market.getValues();
+        for (Integer agentID : values.keySet()) {
+            scorer.addValues(agentID, values.get(agentID));
+        }
+        for (Transaction t : market.getTransactions()) {
+            scorer.addTransaction(t.timestamp.longValue(), t.buyerID.intValue(), t.sellerID.intValue(), t.price);
+        }
+        // The XML is only for looking at, the scores are handed back directly
+        GameScores scores = scorer.score();
+        String allocXML = Utils.getParam(params, PARAM_ALLOC_XML, "off");
+        if (allocXML.equalsIgnoreCase("off")) {
+            return scores;
+        } else if (!allocXML.equalsIgnoreCase("on")) {
+            throw new RuntimeException("Unknown alloc_xml setting: " + allocXML);
+        }
+        File gameDir = new File(resultsDir, String.valueOf(id));
+        if (!gameDir.exists() && !gameDir.mkdirs()) {
+            throw new RuntimeException("Could not create directory: " + gameDir.getAbsolutePath());
+        }
+        if (scorer.writeResults(new File(gameDir, "alloc.xml").getAbsolutePath(), scores) != 0) {
+            throw new RuntimeException("Could not write results for game " + id);
+        }
+        return scores;
+    }
+
+    /**
+     * Starts a thread for every agent and waits for the game to be over.
+     */
+    private void runThreads(List<Thread> agentThreads, Log log, Clock clock, LocalMarket market, MarketContext context, boolean virtualThreads, long endTime) throws InterruptedException {
+        // Create and start the bidding agent threads
+        for (Object o : profile.get("Sellers")) {
+            agentThreads.add(createPlayer((String) o, log, clock, market, context, random.split(), virtualThreads));
+        }
+        for (Object o : profile.get("Buyers")) {
+            agentThreads.add(createPlayer((String) o, log, clock, market, context, random.split(), virtualThreads));
+        }
+        Collections.shuffle(agentThreads, new Random(random.nextLong()));
+        // This thread waits on the clock too
+        clock.attach();
+        for (Thread t : agentThreads) {
+            clock.attach();
+            t.start();
+        }
+
+        // Wait for the game to run and get cleaned up
+        try {
+            if (market == null) {
+                clock.sleepUntil(endTime);
+            } else {
+                // The local market is done as soon as every agent is
+                while (clock.now() < endTime && isAnyAlive(agentThreads)) {
+                    clock.sleepUntil(Math.min(endTime, clock.now() + AGENT_CHECK_INTERVAL));
+                }
+            }
+        } finally {
+            clock.detach();
+        }
+    }
+
+    private Thread createPlayer(final String player, final Log log, final Clock clock, final LocalMarket market, final MarketContext context, final SplittableRandom random, boolean virtualThreads) {
+        Runnable agentTask = new Runnable() {
 
             @Override
             public void run() {
-                CDAGameAgent agent = null;
-                if (player.startsWith("zip")) {
-                    agent = new ZIP(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("zibtq")) {
-                    agent = new ZIBTQ(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("zi")) {
-                    agent = new ZI(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("rb")) {
-                    agent = new RB(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("kaplan")) {
-                    agent = new KAPLAN(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("gdx")) {
-                    agent = new GDX(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("gd")) {
-                    agent = new GD(Main.HOST, Main.AGENT_MANAGER, player, player, log);
-                } else if (player.startsWith("aa")) {
-                    agent = new AA(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+                try {
+                    createAgent(player, log, clock, market, context, random).run();
+                } finally {
+                    clock.detach();
                 }
-                agent.run();
             }
         };
+        if (virtualThreads) {
+            return createVirtualThread(player, agentTask);
+        }
+        Thread agentThread = new Thread(agentTask, player);
         agentThread.setDaemon(true);
         return agentThread;
     }
+
+    /**
+     * Puts the agent's first step on the wheel. Each step puts the next one
+     * on the wheel until the agent is done with the game.
+     */
+    private void startStepping(final String player, Log log, final TimerWheel wheel, LocalMarket market, MarketContext context, SplittableRandom random) {
+        final CDAGameAgent agent = createAgent(player, log, wheel, market, context, random);
+        if (!agent.begin()) {
+            return;
+        }
+        wheel.schedule(agent.getStartTime().longValue(), player, new Runnable() {
+
+            @Override
+            public void run() {
+                long next = agent.step();
+                if (next >= 0) {
+                    wheel.schedule(next, player, this);
+                }
+            }
+        });
+    }
+
+    private CDAGameAgent createAgent(String player, Log log, Clock clock, LocalMarket market, MarketContext context, SplittableRandom random) {
+        CDAGameAgent agent = null;
+        if (market != null) {
+            // Same class AB3D would load from system_agents.xml
+            try {
+                agent = (CDAGameAgent) Class.forName("sim.cda." + Main.getStrategy(player)).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Could not create agent " + player, e);
+            }
+            int agentID = Integer.parseInt(Main.AGENTS.get(player));
+            agent.connect(player, agentID, log, market.gameID, market.startTime, market.connect(agentID));
+        } else if (player.startsWith("zip")) {
+            agent = new ZIP(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("zibtq")) {
+            agent = new ZIBTQ(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("zi")) {
+            agent = new ZI(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("rb")) {
+            agent = new RB(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("kaplan")) {
+            agent = new KAPLAN(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("gdx")) {
+            agent = new GDX(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("gd")) {
+            agent = new GD(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        } else if (player.startsWith("aa")) {
+            agent = new AA(Main.HOST, Main.AGENT_MANAGER, player, player, log);
+        }
+        agent.setRandom(random);
+        agent.setContext(context);
+        if (market != null) {
+            agent.setClock(clock);
+        }
+        return agent;
+    }
+
+    private static boolean isVirtualThreads(Map<String, String> params) {
+        String threads = Utils.getParam(params, PARAM_THREADS, "platform");
+        if (threads.equalsIgnoreCase("virtual")) {
+            try {
+                Thread.class.getMethod("ofVirtual");
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Virtual agent threads need Java 21 or later, running " + System.getProperty("java.version"));
+            }
+            return true;
+        } else if (!threads.equalsIgnoreCase("platform")) {
+            throw new RuntimeException("Unknown agent threads: " + threads);
+        }
+        return false;
+    }
+
+    /**
+     * Thread.ofVirtual().name(name).unstarted(task), looked up at run time so
+     * the simulator still builds and runs on older Java.
+     */
+    private static Thread createVirtualThread(String name, Runnable task) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create a virtual thread for " + name, e);
+        }
+    }
 }
@@ -0,0 +1,112 @@
+package sim.cda;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Waits for the parts of AB3D to come up, checking with exponential backoff
+ * until they are ready or the overall timeout runs out.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class StartupCoordinator {
+
+    // Simulation spec parameter holding the overall startup timeout (ms)
+    public static final String PARAM_TIMEOUT = "startup_timeout";
+    public static final long DEFAULT_TIMEOUT = 120000;
+    public static final long INITIAL_DELAY = 10, MAX_DELAY = 2000;
+    private static final int CONNECT_TIMEOUT = 500;
+    private final long startTime, deadline;
+    // End of the last phase
+    private long phaseStartTime;
+
+    public StartupCoordinator(long timeout) {
+        startTime = System.currentTimeMillis();
+        deadline = startTime + timeout;
+        phaseStartTime = startTime;
+    }
+
+    /**
+     * Waits until every port accepts connections.
+     */
+    public void waitForPorts(String phase, final String host, final int... ports) throws InterruptedException {
+        waitFor(phase, new Condition() {
+
+            @Override
+            public boolean isMet() {
+                for (int port : ports) {
+                    if (!isListening(host, port)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Waits until every file exists and has content.
+     */
+    public void waitForFiles(String phase, final File... files) throws InterruptedException {
+        waitFor(phase, new Condition() {
+
+            @Override
+            public boolean isMet() {
+                for (File file : files) {
+                    if (!file.exists() || file.length() == 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return time since the coordinator was created (ms)
+     */
+    public long getElapsed() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    private void waitFor(String phase, Condition condition) throws InterruptedException {
+        long delay = INITIAL_DELAY;
+        int checks = 0;
+        while (true) {
+            checks++;
+            if (condition.isMet()) {
+                long now = System.currentTimeMillis();
+                Main.printLog("Startup phase \"" + phase + "\" ready in " + (now - phaseStartTime) + " ms (" + checks + " checks)");
+                phaseStartTime = now;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new RuntimeException("Timed out waiting for startup phase \"" + phase + "\" after " + (now - startTime) + " ms");
+            }
+            Thread.sleep(Math.min(delay, deadline - now));
+            delay = Math.min(delay * 2, MAX_DELAY);
+        }
+    }
+
+    private static boolean isListening(String host, int port) {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            try {
+                s.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private interface Condition {
+
+        public boolean isMet();
+    }
+}
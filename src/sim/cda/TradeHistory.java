@@ -0,0 +1,91 @@
+package sim.cda;
+
+/**
+ * Prices of the trades made in each repetition, in the order they were made,
+ * kept for the moving averages of AA and RB. Along with each trade is the
+ * time by which it and every earlier trade had happened, so agents catching
+ * up on old bids can find the trades that preceded them by binary search.
+ *
+ * Trades are added one at a time under the write lock of the market lock.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class TradeHistory {
+
+    private static final int INITIAL_CAPACITY = 64;
+    // By repetition
+    private final int[][] prices;
+    // Running sums of the prices, one ahead: sums[r][i] is the sum of the first i
+    private final long[][] sums;
+    // Latest time among the first i + 1 trades
+    private final long[][] completedBy;
+    private final int[] counts;
+
+    public TradeHistory(int repetitions) {
+        prices = new int[repetitions][INITIAL_CAPACITY];
+        sums = new long[repetitions][INITIAL_CAPACITY + 1];
+        completedBy = new long[repetitions][INITIAL_CAPACITY];
+        counts = new int[repetitions];
+    }
+
+    /**
+     * Records a trade made at the given time (that of the later of its bids).
+     */
+    public void add(int repetitionIndex, int price, long timestamp) {
+        int r = repetitionIndex, i = counts[r];
+        if (i == prices[r].length) {
+            grow(r);
+        }
+        prices[r][i] = price;
+        sums[r][i + 1] = sums[r][i] + price;
+        completedBy[r][i] = i == 0 ? timestamp : Math.max(completedBy[r][i - 1], timestamp);
+        counts[r]++;
+    }
+
+    public int count(int repetitionIndex) {
+        return counts[repetitionIndex];
+    }
+
+    /**
+     * @return number of trades at the start of the repetition all made at or before the time
+     */
+    public int countBefore(int repetitionIndex, long timestamp) {
+        long[] times = completedBy[repetitionIndex];
+        int low = 0, high = counts[repetitionIndex];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return price of the index-th trade of the repetition
+     */
+    public int price(int repetitionIndex, int index) {
+        return prices[repetitionIndex][index];
+    }
+
+    /**
+     * @return sum of the prices of trades [from, to) of the repetition
+     */
+    public long sum(int repetitionIndex, int from, int to) {
+        return sums[repetitionIndex][to] - sums[repetitionIndex][from];
+    }
+
+    private void grow(int r) {
+        int capacity = prices[r].length * 2;
+        int[] grownPrices = new int[capacity];
+        long[] grownSums = new long[capacity + 1], grownCompletedBy = new long[capacity];
+        System.arraycopy(prices[r], 0, grownPrices, 0, counts[r]);
+        System.arraycopy(sums[r], 0, grownSums, 0, counts[r] + 1);
+        System.arraycopy(completedBy[r], 0, grownCompletedBy, 0, counts[r]);
+        prices[r] = grownPrices;
+        sums[r] = grownSums;
+        completedBy[r] = grownCompletedBy;
+    }
+}
@@ -1,15 +1,9 @@
 package sim.cda;
 
-import ab3d.auction.Transaction;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import javax.net.SocketFactory;
 import org.apache.commons.io.IOUtils;
 
@@ -19,58 +13,15 @@ import org.apache.commons.io.IOUtils;
  */
 public class Utils {
 
-    public static final Map<Integer, List<CDAGameBid>> BIDS = new HashMap<Integer, List<CDAGameBid>>();
-    public static final Map<Integer, LinkedList<CDAGameBid>> BID_STACK = new HashMap<Integer, LinkedList<CDAGameBid>>(), ASK_STACK = new HashMap<Integer, LinkedList<CDAGameBid>>();
-    public static final Map<Integer, List<CDAGameBid>> TRANSACTED_BIDS = new HashMap<Integer, List<CDAGameBid>>();
-    public static final Map<Integer, List<Transaction>> TRANSACTIONS = new HashMap<Integer, List<Transaction>>();
-    public static final Object BID_LOCK = new Object();
-    public static final Random RANDOM = new Random();
     public static final String LINE_BREAK = System.getProperty("line.separator");
 
-    public static void reset() {
-        BIDS.clear();
-        BID_STACK.clear();
-        TRANSACTED_BIDS.clear();
-        TRANSACTIONS.clear();
-    }
-
-    public static void addBid(int repetitionIndex, CDAGameBid bid) {
-        // Add to bid list
-        if (!BIDS.containsKey(repetitionIndex)) {
-            BIDS.put(repetitionIndex, new ArrayList<CDAGameBid>());
-        }
-        BIDS.get(repetitionIndex).add(bid);
-        // Update bid/ask stacks
-        if (!BID_STACK.containsKey(repetitionIndex)) {
-            BID_STACK.put(repetitionIndex, new LinkedList<CDAGameBid>());
-        }
-        if (!ASK_STACK.containsKey(repetitionIndex)) {
-            ASK_STACK.put(repetitionIndex, new LinkedList<CDAGameBid>());
-        }
-        if (bid.agentIsBuyer) {
-            if (BID_STACK.get(repetitionIndex).isEmpty() || BID_STACK.get(repetitionIndex).getLast().price.intValue() < bid.price.intValue()) {
-                BID_STACK.get(repetitionIndex).add(bid);
-            }
-        } else {
-            if (ASK_STACK.get(repetitionIndex).isEmpty() || ASK_STACK.get(repetitionIndex).getLast().price.intValue() > bid.price.intValue()) {
-                ASK_STACK.get(repetitionIndex).add(bid);
-            }
-        }
-        // Check for a transaction
-        if (!TRANSACTED_BIDS.containsKey(repetitionIndex)) {
-            TRANSACTED_BIDS.put(repetitionIndex, new LinkedList<CDAGameBid>());
-        }
-        if (!ASK_STACK.get(repetitionIndex).isEmpty() && !BID_STACK.get(repetitionIndex).isEmpty() && ASK_STACK.get(repetitionIndex).getLast().price.intValue() <= BID_STACK.get(repetitionIndex).getLast().price.intValue()) {
-            TRANSACTED_BIDS.get(repetitionIndex).add(ASK_STACK.get(repetitionIndex).removeLast());
-            TRANSACTED_BIDS.get(repetitionIndex).add(BID_STACK.get(repetitionIndex).removeLast());
-        }
-    }
-
-    public static boolean isTransacted(int repetitionIndex, CDAGameBid bid) {
-        if (!TRANSACTED_BIDS.containsKey(repetitionIndex)) {
-            TRANSACTED_BIDS.put(repetitionIndex, new LinkedList<CDAGameBid>());
+    public static String getParam(Map<String, String> params, String name, String defaultValue) {
+        // The YAML parser does not always hand back strings
+        Object value = params == null ? null : ((Map) params).get(name);
+        if (value == null) {
+            return defaultValue;
         }
-        return TRANSACTED_BIDS.get(repetitionIndex).contains(bid);
+        return String.valueOf(value).trim();
     }
 
     public static void safeClose(OutputStream os) {
@@ -0,0 +1,157 @@
+package sim.cda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Private values drawn ahead of time for every seat of every sample, so that
+ * different strategy profiles can be played on the same draws (common random
+ * numbers). Seats are numbered within a role in profile order.
+ *
+ * The file is a header of ints (magic, samples, sellers, buyers, units,
+ * lowest value) followed by one byte per value, value minus the lowest value,
+ * sample by sample, sellers before buyers.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class ValueTable {
+
+    // Simulation spec parameter holding the value table file (values are drawn per sample if not given)
+    public static final String PARAM_FILE = "value_table";
+    private static final int MAGIC = 0x43444156;
+    private static ValueTable shared = null;
+    private static String sharedFile = null;
+    public final int samples, sellers, buyers, units;
+    // Value minus V_MIN, flattened [((sample - 1) * seats + seat) * units + unit]
+    private final byte[] values;
+
+    private ValueTable(int samples, int sellers, int buyers, int units, byte[] values) {
+        this.samples = samples;
+        this.sellers = sellers;
+        this.buyers = buyers;
+        this.units = units;
+        this.values = values;
+    }
+
+    /**
+     * Draws values uniformly from [V_MIN, V_MAX]. Each sample's values come
+     * from the sample seed alone, so a bigger table starts with the same
+     * samples as a smaller one.
+     */
+    public static ValueTable generate(long seed, int samples, int sellers, int buyers) {
+        if (samples < 1 || sellers < 0 || buyers < 0) {
+            throw new RuntimeException("Bad value table size: " + samples + " samples, " + sellers + " sellers, " + buyers + " buyers");
+        }
+        if (CDAGameConstants.V_MAX - CDAGameConstants.V_MIN > 255) {
+            throw new RuntimeException("Values do not fit in a byte: " + CDAGameConstants.V_MIN + " to " + CDAGameConstants.V_MAX);
+        }
+        int units = CDAGameConstants.MAX_TRADES;
+        int perSample = (sellers + buyers) * units;
+        byte[] values = new byte[samples * perSample];
+        for (int s = 1; s <= samples; s++) {
+            SplittableRandom random = new SplittableRandom(SampleExecutor.sampleSeed(seed, s));
+            for (int i = 0; i < perSample; i++) {
+                values[(s - 1) * perSample + i] = (byte) random.nextInt(CDAGameConstants.V_MAX - CDAGameConstants.V_MIN + 1);
+            }
+        }
+        return new ValueTable(samples, sellers, buyers, units, values);
+    }
+
+    public static ValueTable read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new RuntimeException("Not a value table: " + file.getAbsolutePath());
+            }
+            int samples = in.readInt(), sellers = in.readInt(), buyers = in.readInt(), units = in.readInt(), vMin = in.readInt();
+            if (units != CDAGameConstants.MAX_TRADES || vMin != CDAGameConstants.V_MIN) {
+                throw new RuntimeException("Value table was drawn for another game: " + units + " units from " + vMin);
+            }
+            byte[] values = new byte[samples * (sellers + buyers) * units];
+            in.readFully(values);
+            return new ValueTable(samples, sellers, buyers, units, values);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(samples);
+            out.writeInt(sellers);
+            out.writeInt(buyers);
+            out.writeInt(units);
+            out.writeInt(CDAGameConstants.V_MIN);
+            out.write(values);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the table named by the simulation spec, read once and shared by
+     * every simulation (null if there is none)
+     */
+    public static synchronized ValueTable getShared(Map<String, String> params) throws IOException {
+        String file = Utils.getParam(params, PARAM_FILE, null);
+        if (file == null) {
+            return null;
+        }
+        // AB3D draws its own values, which its scorer would use
+        if (!Simulation.isLocalMarket(params)) {
+            throw new RuntimeException("Value tables require the local market.");
+        }
+        if (shared == null) {
+            shared = read(new File(file));
+            sharedFile = file;
+        } else if (!sharedFile.equals(file)) {
+            throw new RuntimeException("Another value table is already in use: " + sharedFile);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the values of a seat, in the order they were drawn
+     */
+    public List<Integer> getValues(int sample, String role, int seat) {
+        int offset;
+        if (role.equals("Sellers") && seat < sellers) {
+            offset = seat;
+        } else if (role.equals("Buyers") && seat < buyers) {
+            offset = sellers + seat;
+        } else {
+            throw new RuntimeException("No seat " + seat + " for " + role + " in the value table");
+        }
+        if (sample < 1 || sample > samples) {
+            throw new RuntimeException("No sample " + sample + " in the value table, which has " + samples);
+        }
+        int start = ((sample - 1) * (sellers + buyers) + offset) * units;
+        List<Integer> seatValues = new ArrayList<Integer>(units);
+        for (int i = 0; i < units; i++) {
+            seatValues.add(CDAGameConstants.V_MIN + (values[start + i] & 0xFF));
+        }
+        return seatValues;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Expected inputs: [table file] [samples] [sellers] [buyers] [seed]
+        if (args.length != 5) {
+            throw new RuntimeException("Expected 5 arguments: table file, samples, sellers, buyers, seed.");
+        }
+        ValueTable table = generate(Long.parseLong(args[4]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        table.write(new File(args[0]));
+        System.out.println("Wrote " + table.samples + " samples of " + table.sellers + " sellers and " + table.buyers + " buyers to " + args[0]);
+    }
+}
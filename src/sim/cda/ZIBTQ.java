@@ -69,7 +69,7 @@ public class ZIBTQ extends CDAGameAgent implements Runnable {
         if (from >= to) {
             bid = from;
         } else {
-            bid = Utils.RANDOM.nextInt(to - from + 1) + from;
+            bid = random.nextInt(to - from + 1) + from;
         }
         submitBid(bid);
     }
@@ -14,7 +14,8 @@ public class ZIP extends CDAGameAgent implements Runnable {
 
     public static final String LOG_ID = ZIP.class.getSimpleName();
     private Map<Integer, List<Double>> profitMargins = new HashMap<Integer, List<Double>>();
-    private int nextBidIndex = 0, currentRepetition = 0;
+    private BidLog.Cursor bids = null;
+    private int currentRepetition = 0;
     private double learningRate, momentum, ques = 0;
 
     public ZIP(String host, int port, String agentID, String agentPW) {
@@ -32,10 +33,27 @@ public class ZIP extends CDAGameAgent implements Runnable {
         initZIP();
     }
 
+    @Override
+    public void setContext(MarketContext context) {
+        super.setContext(context);
+        bids = context.bidLog.cursor(0);
+    }
+
     private void initZIP() {
         logID = LOG_ID;
-        learningRate = 0.4 * Utils.RANDOM.nextDouble() + 0.1;
-        momentum = 0.1 * Utils.RANDOM.nextDouble();
+        initRandom();
+    }
+
+    @Override
+    protected void initRandom() {
+        learningRate = 0.4 * random.nextDouble() + 0.1;
+        momentum = 0.1 * random.nextDouble();
+    }
+
+    @Override
+    protected int getMarketAccess() {
+        // It reads the bid log
+        return MARKET_READ;
     }
 
     @Override
@@ -45,12 +63,12 @@ public class ZIP extends CDAGameAgent implements Runnable {
         // Reset the tracking variables
         if (currentRepetition != repetitionIndex) {
             print("Resetting for next repetition.");
-            nextBidIndex = 0;
+            bids.reset(repetitionIndex);
             currentRepetition = repetitionIndex;
         }
 
         // There haven't been any bids in this auction
-        if (!Utils.BIDS.containsKey(repetitionIndex) || Utils.BIDS.get(repetitionIndex).isEmpty()) {
+        if (context.bidLog.bidCount(repetitionIndex) == 0) {
             print("Not adjusting margin because there have been no bids yet.");
             return;
         }
@@ -72,8 +90,8 @@ public class ZIP extends CDAGameAgent implements Runnable {
         }
 
         // Choose an R and A for this bidding iteration
-        double R = 0.05 * Utils.RANDOM.nextDouble();
-        double A = 5 * Utils.RANDOM.nextDouble();
+        double R = 0.05 * random.nextDouble();
+        double A = 5 * random.nextDouble();
 
         // Current bid price
         Integer currentBid = null;
@@ -84,12 +102,13 @@ public class ZIP extends CDAGameAgent implements Runnable {
 
         // Examine all the shouts that occurred since last check
         //  Hacked around AB3D, which doesn't make this information available
-        for (; nextBidIndex < Utils.BIDS.get(repetitionIndex).size(); nextBidIndex++) {
+        BidLog bidLog = context.bidLog;
+        while (bids.hasNext()) {
             try {
-                CDAGameBid gameBid = Utils.BIDS.get(repetitionIndex).get(nextBidIndex);
+                int gameBid = bids.next();
 
                 // Did this bid result in a transaction?
-                boolean accepted = Utils.isTransacted(repetitionIndex, gameBid);
+                boolean accepted = bidLog.isTransacted(gameBid);
 
                 // Working margin and bid
                 double margin = profitMargins.get(repetitionIndex).get(auctions[repetitionIndex].holdings);
@@ -106,8 +125,8 @@ public class ZIP extends CDAGameAgent implements Runnable {
                     }
                 }
 
-                print("q: " + gameBid.price.intValue());
-                print("buyer? " + gameBid.agentIsBuyer);
+                print("q: " + bidLog.price(gameBid));
+                print("buyer? " + bidLog.isBuy(gameBid));
                 print("accepted? " + accepted);
                 print("p: " + pt);
                 print("margin: " + margin);
@@ -119,23 +138,23 @@ public class ZIP extends CDAGameAgent implements Runnable {
                     // if the last shout was accepted at price q
                     if (accepted) {
                         // if pt >= q
-                        if (pt >= gameBid.price.intValue()) {
+                        if (pt >= bidLog.price(gameBid)) {
                             // raise the profit margin
                             modifyMargin = -1;
                         }
                         // if the last shout was an offer
-                        if (!gameBid.agentIsBuyer) {
+                        if (!bidLog.isBuy(gameBid)) {
                             // if pt <= q
-                            if (pt <= gameBid.price.intValue()) {
+                            if (pt <= bidLog.price(gameBid)) {
                                 // lower the profit margin
                                 modifyMargin = 1;
                             }
                         }
                     } else {
                         // if the last shout was a bid
-                        if (gameBid.agentIsBuyer) {
+                        if (bidLog.isBuy(gameBid)) {
                             // If pt <= q
-                            if (pt <= gameBid.price.intValue()) {
+                            if (pt <= bidLog.price(gameBid)) {
                                 // lower the profit margin
                                 modifyMargin = 1;
                             }
@@ -145,23 +164,23 @@ public class ZIP extends CDAGameAgent implements Runnable {
                     // if the last shout was accepted at price q
                     if (accepted) {
                         // if pt <= q
-                        if (pt <= gameBid.price.intValue()) {
+                        if (pt <= bidLog.price(gameBid)) {
                             // raise the profit margin
                             modifyMargin = 1;
                         }
                         // if the last shout was a bid
-                        if (gameBid.agentIsBuyer) {
+                        if (bidLog.isBuy(gameBid)) {
                             // if pt >= q
-                            if (pt >= gameBid.price.intValue()) {
+                            if (pt >= bidLog.price(gameBid)) {
                                 // lower the profit margin
                                 modifyMargin = -1;
                             }
                         }
                     } else {
                         // if the last shout was an ask
-                        if (!gameBid.agentIsBuyer) {
+                        if (!bidLog.isBuy(gameBid)) {
                             // If pt >= q
-                            if (pt >= gameBid.price.intValue()) {
+                            if (pt >= bidLog.price(gameBid)) {
                                 // lower the profit margin
                                 modifyMargin = -1;
                             }
@@ -191,7 +210,7 @@ public class ZIP extends CDAGameAgent implements Runnable {
                 bidR += 1d;
 
                 // Calculate target price
-                double target = bidR * gameBid.price.intValue() + bidA;
+                double target = bidR * bidLog.price(gameBid) + bidA;
                 
                 print("Target: " + target);
 
@@ -260,7 +279,7 @@ public class ZIP extends CDAGameAgent implements Runnable {
                 if (n <= 0) {
                     bid = CDAGameConstants.V_MIN;
                 } else {
-                    bid = Utils.RANDOM.nextInt(n) + CDAGameConstants.V_MIN;
+                    bid = random.nextInt(n) + CDAGameConstants.V_MIN;
                 }
                 margin = -1d * (double) (auctions[repetitionIndex].currentValue().intValue() - bid) / auctions[repetitionIndex].currentValue().doubleValue();
                 // Dummy check. Buyer margin should be negative.
@@ -273,7 +292,7 @@ public class ZIP extends CDAGameAgent implements Runnable {
                 if (n <= 0) {
                     bid = atLeast;
                 } else {
-                    bid = Utils.RANDOM.nextInt(n) + atLeast;
+                    bid = random.nextInt(n) + atLeast;
                 }
                 margin = (double) (bid - auctions[repetitionIndex].currentValue().intValue()) / auctions[repetitionIndex].currentValue().doubleValue();
                 // Dummy check. Seller margin should be positive
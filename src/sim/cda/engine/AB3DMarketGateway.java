@@ -0,0 +1,66 @@
+package sim.cda.engine;
+
+import ab3d.agent.Agent;
+import ab3d.auction.Bid;
+import ab3d.auction.Quote;
+import ab3d.auction.Transaction;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import org.jdom.Element;
+
+/**
+ * Talks to the AB3D agent manager through the agent's own connection.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class AB3DMarketGateway implements MarketGateway {
+
+    private final Agent agent;
+
+    public AB3DMarketGateway(Agent agent) {
+        this.agent = agent;
+    }
+
+    @Override
+    public boolean nextGame() {
+        return agent.nextGame();
+    }
+
+    @Override
+    public List<Integer> getAuctionIDs() {
+        List<Integer> auctionIDs = new LinkedList<Integer>();
+        for (Object o : agent.getGameAuctionIDs()) {
+            auctionIDs.add(Integer.valueOf(((Element) o).getText()));
+        }
+        return auctionIDs;
+    }
+
+    @Override
+    public Element getGameParams() {
+        return agent.getGameParams(agent.gameID);
+    }
+
+    @Override
+    public Bid submitBid(Bid bid, Integer auctionID) {
+        return agent.submitBid(bid, auctionID);
+    }
+
+    @Override
+    public List<Transaction> getNewTransactions() {
+        Vector newTransactions = agent.getNewTransactions();
+        if (newTransactions == null) {
+            return null;
+        }
+        List<Transaction> transactions = new LinkedList<Transaction>();
+        for (Object o : newTransactions) {
+            transactions.add((Transaction) o);
+        }
+        return transactions;
+    }
+
+    @Override
+    public Quote getQuote(Integer auctionID) {
+        return agent.getQuote(null, auctionID);
+    }
+}
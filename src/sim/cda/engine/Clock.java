@@ -0,0 +1,37 @@
+package sim.cda.engine;
+
+/**
+ * Source of time for a simulation. Agents, the market and the simulation
+ * runner all read the time and wait through the clock so that a sample can be
+ * driven either by the wall clock or by a virtual clock.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public interface Clock {
+
+    /**
+     * @return the current time in milliseconds
+     */
+    public long now();
+
+    /**
+     * Blocks the calling thread until the clock reaches the given time.
+     */
+    public void sleepUntil(long time) throws InterruptedException;
+
+    /**
+     * Runs the action once the clock reaches the given time.
+     */
+    public void schedule(long time, Runnable action);
+
+    /**
+     * Registers a thread that will wait on this clock. Must be called before
+     * the thread is started.
+     */
+    public void attach();
+
+    /**
+     * Unregisters a thread that will no longer wait on this clock.
+     */
+    public void detach();
+}
@@ -0,0 +1,196 @@
+package sim.cda.engine;
+
+import ab3d.auction.Bid;
+import ab3d.auction.PQBid;
+import ab3d.auction.PQTransaction;
+import ab3d.auction.Price;
+import ab3d.auction.Quote;
+import ab3d.auction.Transaction;
+import ab3d.comm.TACProtocol;
+import ab3d.util.TimeStamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.jdom.Element;
+
+/**
+ * In-process replacement for the AB3D game: a single CDA that runs on the
+ * given clock. Between repetitions the standing bids are flushed, and the
+ * auction closes at the end of the last repetition, as in
+ * auction_template.xml. Repetitions end as the schedule says at the time,
+ * which can move them up, so the market ends them the next time it is used
+ * rather than at times fixed when it opens.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class LocalMarket {
+
+    public static final int AUCTION_ID = 1;
+    public final int gameID;
+    public final long startTime;
+    private final Clock clock;
+    private final RepetitionSchedule schedule;
+    private final OrderBook book = new OrderBook();
+    private final List<Transaction> transactions = new ArrayList<Transaction>();
+    // Maps <agent ID, private values>
+    private final Map<Integer, List<Integer>> values = new HashMap<Integer, List<Integer>>();
+    private boolean closed = false;
+    private int bidIDs = 0, transactionIDs = 0;
+    // Repetition whose end has not been reached yet
+    private int repetition = 0;
+
+    public LocalMarket(int gameID, Clock clock, RepetitionSchedule schedule) {
+        this.gameID = gameID;
+        this.clock = clock;
+        this.schedule = schedule;
+        this.startTime = schedule.getStart(0);
+    }
+
+    public synchronized void addAgent(int agentID, List<Integer> agentValues) {
+        values.put(agentID, Collections.unmodifiableList(new ArrayList<Integer>(agentValues)));
+    }
+
+    /**
+     * Flushes the bids of every repetition that has ended by now, and closes
+     * the auction once the last one has.
+     */
+    private void endRepetitions(long now) {
+        while (repetition < schedule.getRepetitions() && now >= schedule.getEnd(repetition)) {
+            book.flush();
+            if (++repetition == schedule.getRepetitions()) {
+                closed = true;
+            }
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        endRepetitions(clock.now());
+        return closed;
+    }
+
+    /**
+     * @return a new connection to this market for the agent
+     */
+    public MarketGateway connect(int agentID) {
+        return new Gateway(agentID);
+    }
+
+    /**
+     * @return private values of every agent
+     */
+    public synchronized Map<Integer, List<Integer>> getValues() {
+        return new HashMap<Integer, List<Integer>>(values);
+    }
+
+    /**
+     * @return every transaction so far
+     */
+    public synchronized List<Transaction> getTransactions() {
+        return new ArrayList<Transaction>(transactions);
+    }
+
+    synchronized Bid submit(int agentID, Bid bid) {
+        long now = clock.now();
+        endRepetitions(now);
+        bid.bid_id = bidIDs++;
+        bid.agent_id = agentID;
+        bid.timestamp = new TimeStamp(now);
+        if (closed) {
+            bid.rejectReason = TACProtocol.RR_BID_NOT_ACTIVE;
+            return bid;
+        }
+        bid.rejectReason = TACProtocol.RR_NOT_REJECTED;
+        // Single unit bids, positive quantity to buy and negative to sell
+        PQBid pqBid = (PQBid) bid;
+        boolean buy = pqBid.bidArray[0].getquantity() > 0;
+        int price = pqBid.bidArray[0].getprice().intValue();
+        OrderBook.Order match = book.submit(agentID, buy, price, now);
+        if (match != null) {
+            int buyerID = buy ? agentID : match.agentID;
+            int sellerID = buy ? match.agentID : agentID;
+            PQTransaction transaction = new PQTransaction(1, new Price(match.price), buyerID, sellerID, new TimeStamp(now));
+            transaction.transID = transactionIDs++;
+            transaction.auctionID = AUCTION_ID;
+            transactions.add(transaction);
+        }
+        return bid;
+    }
+
+    synchronized Quote quote() {
+        endRepetitions(clock.now());
+        Quote quote = new Quote();
+        quote.auctionID = AUCTION_ID;
+        quote.as = closed ? TACProtocol.AS_AUCTION_CLOSED : TACProtocol.AS_INTERMEDIATE_CLEAR;
+        quote.lastQuoteTime = new TimeStamp(clock.now());
+        if (book.bestBid() != null) {
+            quote.lastBidPrice = new Price(book.bestBid().price);
+        }
+        if (book.bestAsk() != null) {
+            quote.lastAskPrice = new Price(book.bestAsk().price);
+        }
+        return quote;
+    }
+
+    synchronized List<Transaction> transactionsFrom(int index) {
+        return new ArrayList<Transaction>(transactions.subList(Math.min(index, transactions.size()), transactions.size()));
+    }
+
+    private class Gateway implements MarketGateway {
+
+        private final int agentID;
+        private int transactionIndex = 0;
+
+        public Gateway(int agentID) {
+            this.agentID = agentID;
+        }
+
+        @Override
+        public boolean nextGame() {
+            return true;
+        }
+
+        @Override
+        public List<Integer> getAuctionIDs() {
+            List<Integer> auctionIDs = new LinkedList<Integer>();
+            auctionIDs.add(AUCTION_ID);
+            return auctionIDs;
+        }
+
+        @Override
+        public Element getGameParams() {
+            Element params = new Element("getGameParams");
+            params.addContent(new Element("agent").setText(String.valueOf(agentID)));
+            Element auction = new Element("auction");
+            auction.addContent(new Element("id").setText(String.valueOf(AUCTION_ID)));
+            List<Integer> agentValues;
+            synchronized (LocalMarket.this) {
+                agentValues = values.get(agentID);
+            }
+            for (int value : agentValues) {
+                auction.addContent(new Element("value").setText(String.valueOf(value)));
+            }
+            params.addContent(new Element("auctionValues").addContent(auction));
+            return params;
+        }
+
+        @Override
+        public Bid submitBid(Bid bid, Integer auctionID) {
+            return submit(agentID, bid);
+        }
+
+        @Override
+        public List<Transaction> getNewTransactions() {
+            List<Transaction> newTransactions = transactionsFrom(transactionIndex);
+            transactionIndex += newTransactions.size();
+            return newTransactions;
+        }
+
+        @Override
+        public Quote getQuote(Integer auctionID) {
+            return quote();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package sim.cda.engine;
+
+import ab3d.auction.Bid;
+import ab3d.auction.Quote;
+import ab3d.auction.Transaction;
+import java.util.List;
+import org.jdom.Element;
+
+/**
+ * A single agent's connection to the market.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public interface MarketGateway {
+
+    /**
+     * @return true once the agent has been placed in a game
+     */
+    public boolean nextGame();
+
+    public List<Integer> getAuctionIDs();
+
+    /**
+     * @return the agent's game parameters in the AB3D getGameParams format
+     */
+    public Element getGameParams();
+
+    public Bid submitBid(Bid bid, Integer auctionID);
+
+    /**
+     * @return the transactions that occurred since the last call
+     */
+    public List<Transaction> getNewTransactions();
+
+    public Quote getQuote(Integer auctionID);
+}
@@ -0,0 +1,107 @@
+package sim.cda.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single unit, price-time priority continuous double auction book. Each agent
+ * has at most one standing order, and a new order from an agent replaces its
+ * previous one. A crossing order trades immediately with the best standing
+ * order on the other side at the standing order's price (AB3D's "earliest"
+ * matching).
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class OrderBook {
+
+    // Bids ordered from best (highest, earliest) to worst, asks from best (lowest, earliest) to worst
+    private final List<Order> bids = new ArrayList<Order>(), asks = new ArrayList<Order>();
+    private long sequence = 0;
+
+    /**
+     * Places an order in the book.
+     *
+     * @return the standing order it traded with, or null if it now stands in the book
+     */
+    public Order submit(int agentID, boolean buy, int price, long timestamp) {
+        // Replace any order the agent already has in the book
+        cancel(agentID);
+        Order order = new Order(agentID, buy, price, timestamp, sequence++);
+        List<Order> opposite = buy ? asks : bids;
+        if (!opposite.isEmpty()) {
+            Order best = opposite.get(0);
+            if ((buy && best.price <= price) || (!buy && best.price >= price)) {
+                opposite.remove(0);
+                return best;
+            }
+        }
+        insert(buy ? bids : asks, order);
+        return null;
+    }
+
+    public void cancel(int agentID) {
+        remove(bids, agentID);
+        remove(asks, agentID);
+    }
+
+    /**
+     * Removes every standing order.
+     */
+    public void flush() {
+        bids.clear();
+        asks.clear();
+    }
+
+    /**
+     * @return the best standing bid, or null if there is none
+     */
+    public Order bestBid() {
+        return bids.isEmpty() ? null : bids.get(0);
+    }
+
+    /**
+     * @return the best standing ask, or null if there is none
+     */
+    public Order bestAsk() {
+        return asks.isEmpty() ? null : asks.get(0);
+    }
+
+    private static void insert(List<Order> side, Order order) {
+        int i = 0;
+        while (i < side.size() && !order.betterThan(side.get(i))) {
+            i++;
+        }
+        side.add(i, order);
+    }
+
+    private static void remove(List<Order> side, int agentID) {
+        for (int i = 0; i < side.size(); i++) {
+            if (side.get(i).agentID == agentID) {
+                side.remove(i);
+                return;
+            }
+        }
+    }
+
+    public static class Order {
+
+        public final int agentID, price;
+        public final boolean buy;
+        public final long timestamp, sequence;
+
+        public Order(int agentID, boolean buy, int price, long timestamp, long sequence) {
+            this.agentID = agentID;
+            this.buy = buy;
+            this.price = price;
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+
+        boolean betterThan(Order o) {
+            if (price != o.price) {
+                return buy ? price > o.price : price < o.price;
+            }
+            return sequence < o.sequence;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package sim.cda.engine;
+
+/**
+ * When each repetition of a game not run by AB3D starts and ends. Each
+ * repetition starts the instant the previous one ends. A repetition can be
+ * ended early, which moves every later one up by the time saved, so the
+ * market, the agents and the scorer all read their repetitions from here.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class RepetitionSchedule {
+
+    private final long startTime, repetitionLength;
+    // starts[r] is when repetition r starts, starts[repetitions] when the last one ends
+    private final long[] starts;
+
+    public RepetitionSchedule(long startTime, int repetitions, long repetitionLength) {
+        this.startTime = startTime;
+        this.repetitionLength = repetitionLength;
+        starts = new long[repetitions + 1];
+        for (int r = 0; r <= repetitions; r++) {
+            starts[r] = startTime + r * repetitionLength;
+        }
+    }
+
+    public int getRepetitions() {
+        return starts.length - 1;
+    }
+
+    public synchronized long getStart(int repetition) {
+        return starts[repetition];
+    }
+
+    public synchronized long getEnd(int repetition) {
+        return starts[repetition + 1];
+    }
+
+    /**
+     * @return the repetition running at the given time, or -1 if the game has
+     * not started or is over
+     */
+    public synchronized int getRepetition(long time) {
+        for (int r = 0; r < starts.length - 1; r++) {
+            if (time >= starts[r] && time < starts[r + 1]) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ends the repetition at the given time rather than when it was due to,
+     * and starts every later one that much sooner. A time past the current
+     * end changes nothing.
+     */
+    public synchronized void endEarly(int repetition, long time) {
+        long saved = starts[repetition + 1] - Math.max(time, starts[repetition]);
+        if (saved <= 0) {
+            return;
+        }
+        for (int r = repetition + 1; r < starts.length; r++) {
+            starts[r] -= saved;
+        }
+    }
+
+    /**
+     * @return how much sooner the game ends than it was due to (ms)
+     */
+    public synchronized long getSavedTime() {
+        return startTime + (starts.length - 1) * repetitionLength - starts[starts.length - 1];
+    }
+}
@@ -0,0 +1,130 @@
+package sim.cda.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Clock for driving every agent of a sample from a single thread. Work is
+ * kept on a wheel of one millisecond slots and run in time order; nothing
+ * ever waits, so no thread may sleep on this clock. Work due at the same time
+ * runs scheduled actions first and then in order of owner name, the same
+ * order the virtual clock releases its threads in.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class TimerWheel implements Clock {
+
+    // Number of slots, a power of two (work further ahead waits for the wheel to come round)
+    private static final int SLOTS = 1024;
+    private final List<List<Event>> slots = new ArrayList<List<Event>>(SLOTS);
+    private long now;
+    private int pending = 0;
+    private long sequence = 0;
+
+    public TimerWheel(long startTime) {
+        now = startTime;
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new ArrayList<Event>(2));
+        }
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        if (time > now) {
+            throw new RuntimeException("Nothing may wait on the timer wheel.");
+        }
+    }
+
+    @Override
+    public void schedule(long time, Runnable action) {
+        schedule(time, "", action);
+    }
+
+    /**
+     * Runs the work once the wheel reaches the given time (right away if it
+     * has passed). Work at the same time runs in order of owner name.
+     */
+    public void schedule(long time, String owner, Runnable work) {
+        time = Math.max(time, now);
+        slots.get((int) (time & (SLOTS - 1))).add(new Event(time, owner, sequence++, work));
+        pending++;
+    }
+
+    @Override
+    public void attach() {
+    }
+
+    @Override
+    public void detach() {
+    }
+
+    /**
+     * @return the amount of work waiting to run
+     */
+    public int pending() {
+        return pending;
+    }
+
+    /**
+     * Turns the wheel until there is no more work or the given time has
+     * passed.
+     */
+    public void runUntil(long endTime) {
+        List<Event> due = new ArrayList<Event>();
+        while (pending > 0 && now <= endTime) {
+            List<Event> slot = slots.get((int) (now & (SLOTS - 1)));
+            // Work can schedule more work for the same time
+            while (!slot.isEmpty()) {
+                due.clear();
+                for (int i = 0; i < slot.size(); i++) {
+                    if (slot.get(i).time == now) {
+                        due.add(slot.get(i));
+                    }
+                }
+                if (due.isEmpty()) {
+                    break;
+                }
+                slot.removeAll(due);
+                pending -= due.size();
+                Collections.sort(due);
+                for (Event event : due) {
+                    event.work.run();
+                }
+            }
+            if (pending > 0 && now < endTime) {
+                now++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+
+        public final long time, sequence;
+        public final String owner;
+        public final Runnable work;
+
+        public Event(long time, String owner, long sequence, Runnable work) {
+            this.time = time;
+            this.owner = owner;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            int c = owner.compareTo(o.owner);
+            if (c != 0) {
+                return c;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package sim.cda.engine;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Discrete-event clock. Time only moves forward once every attached thread is
+ * waiting on the clock, at which point it jumps straight to the earliest
+ * pending event. Scheduled actions run before threads waking at the same time,
+ * and threads waking at the same time are released one at a time in order of
+ * thread name so that the order of events does not depend on the OS scheduler.
+ * Waiting threads park on a lock condition rather than a monitor, so agents
+ * running on virtual threads give up their carrier while they wait.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class VirtualClock implements Clock {
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private volatile long now;
+    private int attached = 0, waiting = 0;
+    private long sequence = 0;
+
+    public VirtualClock(long startTime) {
+        now = startTime;
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        lock.lock();
+        try {
+            if (time <= now) {
+                return;
+            }
+            Event event = new Event(time, Thread.currentThread().getName(), sequence++, null);
+            events.add(event);
+            waiting++;
+            advance();
+            try {
+                while (!event.fired) {
+                    released.await();
+                }
+            } catch (InterruptedException e) {
+                // Give up the place in the queue
+                if (!event.fired && events.remove(event)) {
+                    waiting--;
+                    advance();
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void schedule(long time, Runnable action) {
+        lock.lock();
+        try {
+            events.add(new Event(time, "", sequence++, action));
+            advance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void attach() {
+        lock.lock();
+        try {
+            attached++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void detach() {
+        lock.lock();
+        try {
+            attached--;
+            advance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events waiting to fire
+     */
+    public int pending() {
+        lock.lock();
+        try {
+            return events.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called while holding the lock
+    private void advance() {
+        // Time can only move when nobody is running
+        while (attached > 0 && waiting >= attached && !events.isEmpty()) {
+            Event event = events.poll();
+            if (event.time > now) {
+                now = event.time;
+            }
+            if (event.action != null) {
+                event.action.run();
+            } else {
+                // Release a single thread, time stands still until it waits again
+                event.fired = true;
+                waiting--;
+                released.signalAll();
+            }
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+
+        public final long time, sequence;
+        public final String owner;
+        public final Runnable action;
+        public boolean fired = false;
+
+        public Event(long time, String owner, long sequence, Runnable action) {
+            this.time = time;
+            this.owner = owner;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            // Actions go first
+            if ((action == null) != (o.action == null)) {
+                return action != null ? -1 : 1;
+            }
+            int c = owner.compareTo(o.owner);
+            if (c != 0) {
+                return c;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
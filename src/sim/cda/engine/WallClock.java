@@ -0,0 +1,47 @@
+package sim.cda.engine;
+
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Real time clock. This is how the simulator has always run.
+ *
+ * @author Augie <augie@umich.edu>
+ */
+public class WallClock implements Clock {
+
+    private static final Timer TIMER = new Timer("wall-clock", true);
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        long wait;
+        while ((wait = time - now()) > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    @Override
+    public void schedule(long time, final Runnable action) {
+        TIMER.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                action.run();
+            }
+        }, new Date(time));
+    }
+
+    @Override
+    public void attach() {
+    }
+
+    @Override
+    public void detach() {
+    }
+}